@@ -1,17 +1,28 @@
 package client;
 
 import dataobjects.ChatMessage;
+import dataobjects.Packet;
 import dataobjects.User;
 import encryption.DiffieHelman;
 import encryption.Encryption;
+import utils.BroadcastPolicy;
+import utils.BroadcastSuppressor;
+import utils.CoveragePolicy;
+import utils.Membership;
+import utils.NeighborTable;
+import utils.PeerSession;
+import utils.PeerTable;
 import utils.Protocol;
+import utils.RoutingTable;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Main client class
@@ -24,17 +35,25 @@ public class Client extends Observable implements Runnable {
 	private InetAddress group;
 	private int port;
 	
-	private MulticastSocket socket;
-	private boolean connected = false;
+	private EventLoop eventLoop;
+	private volatile boolean connected = false;
 	
 	private ClientSender clientSender;
 	private ClientListener clientListener;
 	
-	private Map<Integer, User> connectedUsers;
+	private PeerTable peers;
 	private Map<String, Set<Integer>> destinations;
-	private Map<Integer, DiffieHelman> keyPairs;
+
+	private String groupKey;
+	private DiffieHelman signingKeys;
+
+	private RoutingTable routingTable;
+	private BroadcastSuppressor broadcastSuppressor;
+	private NeighborTable neighborTable;
+	private Membership membership;
 
 	private long lastAliveBroadcast;
+	private volatile boolean errorCorrection;
 	
 	/**
 	 * Constructor
@@ -43,13 +62,22 @@ public class Client extends Observable implements Runnable {
 		this.address = address;
 		this.port = port;
 
-		connectedUsers = new ConcurrentHashMap<>();
-		destinations = new HashMap<>();
-		keyPairs = new HashMap<>();
+		// The users, their keys and their connections are kept in one session per user, used by the decoders of several sources at once
+		peers = new PeerTable();
+		destinations = new ConcurrentHashMap<>();
+
+		// Our group addressed messages are encrypted with a key of our own, the other users get it over their key exchange
+		groupKey = Encryption.generateKey();
+
+		routingTable = new RoutingTable(Protocol.ROUTE_TIMEOUT);
+		neighborTable = new NeighborTable(Protocol.getSourceAddress(), Protocol.BEACON_WINDOW);
+		membership = new Membership(Protocol.getSourceAddress(), null);
+		broadcastSuppressor = new BroadcastSuppressor(new CoveragePolicy(neighborTable, Protocol.BROADCAST_DELAY));
 
-		destinations.put(Protocol.MAINCHAT, new HashSet<Integer>());
+		destinations.put(Protocol.MAINCHAT, ConcurrentHashMap.newKeySet());
 
 		lastAliveBroadcast = 0;
+		errorCorrection = Protocol.ERROR_CORRECTION;
 	}
 	
 	/**
@@ -57,16 +85,18 @@ public class Client extends Observable implements Runnable {
 	 */
 	public void connect() {
 		try {
-			// Create a multicast socket and join a multicast group
-			socket = new MulticastSocket(port);
+			// Our leave message is signed with a key pair of our own, its public key goes along with our group key
+			signingKeys = new DiffieHelman(true);
+
+			// Open a multicast channel and join a multicast group
 			group = InetAddress.getByName(address);
-			socket.joinGroup(group);
+			eventLoop = new EventLoop(group, port);
 			
-			// Create the send and receive buffers
-			(clientSender = new ClientSender(20, socket, group, port, this)).start();
-			(clientListener = new ClientListener(20, socket, this)).start();
+			// Create the send and receive buffers, they run on the event loop
+			clientSender = new ClientSender(Protocol.WINDOW_SIZE, eventLoop, this);
+			clientListener = new ClientListener(Protocol.WINDOW_SIZE, this);
+			eventLoop.setListener(clientListener);
 
-			// Start the while loop
 			connected = true;
 
 			notifyGUI(Protocol.NOTIFY + " Connected.");
@@ -77,20 +107,20 @@ public class Client extends Observable implements Runnable {
 	}
 	
 	/**
-	 * Disconnect the socket and leave the multicast group
+	 * Disconnect, the event loop closes the channel and leaves the multicast group once the leave message is sent
 	 */
 	public void disconnect() {
-		try {
-			// Stop the while loops
-			clientSender.disconnect();
-			clientListener.disconnect();
+		if (connected) {
 			connected = false;
-			
-			// Leave the multicast group and close the socket
-			socket.leaveGroup(group);
-			socket.close();
-		} catch (Exception e) {
-			e.printStackTrace();
+
+			eventLoop.execute(() -> {
+				// Let everyone know we're leaving, so they stop sending to us right away
+				sendLeave();
+
+				clientSender.disconnect();
+				clientListener.disconnect();
+			});
+			eventLoop.close();
 		}
 	}
 
@@ -101,7 +131,7 @@ public class Client extends Observable implements Runnable {
 	public void startKeyExchange(int destination) {
 		// Generate a public and private key pair for the new user
 		DiffieHelman diffieHelman = new DiffieHelman(true);
-		keyPairs.put(destination, diffieHelman);
+		peers.getOrCreate(destination).setKeyPair(diffieHelman);
 
 		// Send our public key to the given destination
 		sendMessage(Protocol.PUB_KEY + " " + diffieHelman.publicKeyToString(), destination);
@@ -112,7 +142,18 @@ public class Client extends Observable implements Runnable {
 	 * @param destination The destination of the exchange
 	 */
 	public void endKeyExchange(int destination) {
-		keyPairs.get(destination).setExchangeSuccesful(true);
+		PeerSession session = peers.get(destination);
+
+		if (session == null || session.getKeyPair() == null) {
+			return;
+		}
+
+		session.getKeyPair().setExchangeSuccesful(true);
+
+		// Send our group key right away, it also verifies our leave message
+		if (session.markGroupKeySent()) {
+			sendMessage(getGroupKeyMessage(), destination);
+		}
 	}
 
 	/**
@@ -121,7 +162,9 @@ public class Client extends Observable implements Runnable {
 	 * @return true if the key exchange is finished, else false
 	 */
 	public boolean isExchanged(int destination) {
-		return keyPairs.get(destination).isExchangeSuccesful();
+		PeerSession session = peers.get(destination);
+
+		return session != null && session.isExchanged();
 	}
 
 	/**
@@ -130,7 +173,13 @@ public class Client extends Observable implements Runnable {
 	 * @param encryptedKey The encrypted symmetric key to set
 	 */
 	public void addAndDecryptSymmetricKey(int destination, String encryptedKey) {
-		DiffieHelman diffieHelman = keyPairs.get(destination);
+		PeerSession session = peers.get(destination);
+		DiffieHelman diffieHelman = session != null ? session.getKeyPair() : null;
+
+		if (diffieHelman == null) {
+			return;
+		}
+
 		diffieHelman.setSymmetricKey(new String(DiffieHelman.decrypt(Encryption.base64Decode(encryptedKey), diffieHelman.getPrivateKey())));
 
 		// Let the other client know we received their key
@@ -144,15 +193,10 @@ public class Client extends Observable implements Runnable {
 	 * @return true if the key was added, false if another key exchange is already in progress
 	 */
 	public boolean addSymmetricKey(int destination, String key) {
-		if (!keyPairs.containsKey(destination)) {
-			DiffieHelman diffieHelman = new DiffieHelman(false);
-			diffieHelman.setSymmetricKey(key);
-			keyPairs.put(destination, diffieHelman);
+		DiffieHelman diffieHelman = new DiffieHelman(false);
+		diffieHelman.setSymmetricKey(key);
 
-			return true;
-		} else {
-			return false;
-		}
+		return peers.getOrCreate(destination).setKeyPairIfAbsent(diffieHelman);
 	}
 
 	/**
@@ -161,7 +205,9 @@ public class Client extends Observable implements Runnable {
 	 * @return The symmetric key
 	 */
 	public String getSymmetricKey(int destination) {
-		return (keyPairs.get(destination) != null && keyPairs.get(destination).isExchangeSuccesful()) ? keyPairs.get(destination).getSymmetricKey() : null;
+		PeerSession session = peers.get(destination);
+
+		return session != null ? session.getSymmetricKey() : null;
 	}
 
 	/**
@@ -177,49 +223,287 @@ public class Client extends Observable implements Runnable {
 	 * Add a user to the list of connected users
 	 * @param user The user to add
 	 */
-	public void addUser(User user) {
+	public synchronized void addUser(User user) {
+		int address = user.getAddress();
+		PeerSession session = peers.getOrCreate(address);
+
 		// If the user does not yet exist
-		if (user.getAddress() != Protocol.getSourceAddress() && !connectedUsers.containsKey(user.getAddress())) {
-			openConnection(user.getAddress());
-			openConnection(user.getAddress());
-			destinations.get(Protocol.MAINCHAT).add(user.getAddress());
-
-			// If we don't have a key for this user yet
-			if (!keyPairs.containsKey(user.getAddress())) {
-				// Start a key exchange
-				startKeyExchange(user.getAddress());
+		if (address != Protocol.getSourceAddress() && session.getUser() == null) {
+			openConnection(address);
+			destinations.get(Protocol.MAINCHAT).add(address);
+
+			// A user we only know from its messages is probed like the members, so it times out when it goes away
+			membership.add(address, user.getName());
+
+			// Generate our key pair on the decoder of the user, after its packets that are waiting, so a slow key generation only holds up this user
+			Runnable keyExchange = () -> {
+				// If we don't have a key for this user yet
+				if (peers.get(address) == session && session.getKeyPair() == null) {
+					// Start a key exchange
+					startKeyExchange(address);
+				}
+			};
+
+			// The exchange can't be dropped like a packet, if the queue of the decoder is full it is started right here
+			if (!clientListener.execute(address, keyExchange)) {
+				keyExchange.run();
 			}
 		}
 
-		connectedUsers.put(user.getAddress(), user);
+		session.setUser(user);
 	}
 
 	/**
 	 * Remove a user from the list of connected users
 	 * @param address The user's address
 	 */
-	public void removeUser(int address) {
-		connectedUsers.remove(address);
+	public synchronized void removeUser(int address) {
 		clientSender.closeConnection(address);
 		clientListener.closeConnection(address);
+		peers.remove(address);
+		routingTable.removeNode(address);
+		broadcastSuppressor.removeSource(address);
+		neighborTable.remove(address);
 
-		if (destinations.get(Protocol.MAINCHAT).contains(address)) {
-			destinations.get(Protocol.MAINCHAT).remove(address);
+		for (Set<Integer> addresses : destinations.values()) {
+			addresses.remove(address);
 		}
 	}
 
 	/**
-	 * Remove users that have not been seen for a while
+	 * Handle the leave message of a user, the user is removed right away if the message is signed with its signing key
+	 * @param source The source of the message
+	 * @param command The tokens of the message: command, incarnation, signature
 	 */
-	public void removeInactiveUsers() {
-		for (User user : connectedUsers.values()) {
-			// If the last seen timestamp was set more milliseconds ago than the inactivity limit allows
-			if (user.getAddress() != Protocol.getSourceAddress() && (System.currentTimeMillis() - user.getLastSeen().getTime()) > Protocol.INACTIVITY_LIMIT) {
-				// Remove the user
-				this.removeUser(user.getAddress());
-				notifyGUI(Protocol.PART + " " + user.getName());
+	public void receiveLeave(int source, String[] command) {
+		long incarnation;
+		byte[] signature;
+
+		try {
+			incarnation = Long.parseLong(command[1]);
+			signature = Encryption.base64Decode(command[2]);
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			System.err.println("Malformed leave message.");
+			return;
+		}
+
+		PeerSession session = peers.get(source);
+		PublicKey key = session != null ? session.getSigningKey() : null;
+
+		// Only the user itself can sign it, a leave we can't verify is ignored
+		if (key == null || !DiffieHelman.verify(getSignedLeave(source, incarnation), signature, key)) {
+			System.err.println("Unverified leave message.");
+			return;
+		}
+
+		// A leave of an older incarnation is a replay from a previous run
+		Membership.Member member = membership.leave(source, incarnation);
+		User user = getUser(source);
+
+		if ((member != null || membership.getStatus(source) == -1) && user != null) {
+			removeUser(source);
+			notifyGUI(Protocol.PART + " " + user.getName());
+		}
+	}
+
+	/**
+	 * Send a signed leave message that is flooded to everyone
+	 */
+	private void sendLeave() {
+		long incarnation = membership.getIncarnation();
+		byte[] signature = signingKeys.sign(getSignedLeave(Protocol.getSourceAddress(), incarnation));
+
+		// The encoder breaks long lines, the signature has to stay a single token
+		clientSender.sendLeaveBroadcast(Protocol.LEAVE + " " + incarnation + " " + Encryption.base64Encode(signature).replaceAll("\\s", ""));
+	}
+
+	/**
+	 * @return The message with our group key, and the public key our leave message is verified with
+	 */
+	private String getGroupKeyMessage() {
+		return Protocol.GROUP_KEY + " " + groupKey + " " + signingKeys.publicKeyToString().replaceAll("\\s", "");
+	}
+
+	/**
+	 * @return The part of a leave message that is signed, it includes the source so it can't be replayed as someone else's
+	 */
+	private static byte[] getSignedLeave(int source, long incarnation) {
+		return (Protocol.LEAVE + " " + source + " " + incarnation).getBytes();
+	}
+
+	/**
+	 * Apply the membership changes of a beacon or probe
+	 * @param source The source of the message
+	 * @param command The tokens of the message
+	 * @param offset The index of the first token that may be a change
+	 */
+	public void receiveMembership(int source, String[] command, int offset) {
+		for (Membership.Member member : membership.apply(command, offset)) {
+			if (member.getStatus() == Membership.DEAD) {
+				memberFailed(member);
+			} else {
+				memberJoined(member);
 			}
 		}
+
+		// The user is still around, so resume retransmitting if we gave up on them
+		resume(source);
+	}
+
+	/**
+	 * Handle a membership probe: answer it, probe a member for the source, or pass an answer on to the member that wants it
+	 * @param source The source of the probe
+	 * @param command The tokens of the probe: command, probe id, probed member, member that wants the answer, digest of the membership list of the source, changes
+	 */
+	public void receiveProbe(int source, String[] command) {
+		int id;
+		int member;
+		int origin;
+		int digest;
+
+		try {
+			id = Integer.parseInt(command[1]);
+			member = Integer.parseInt(command[2]);
+			origin = Integer.parseInt(command[3]);
+			digest = Integer.parseUnsignedInt(command[4], 16);
+		} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			System.err.println("Malformed membership probe.");
+			return;
+		}
+
+		receiveMembership(source, command, 5);
+
+		switch (command[0]) {
+			case Protocol.PING:
+				// A member with a different membership list gets the whole list
+				sendProbe(Protocol.PING_ACK, id, Protocol.getSourceAddress(), origin, source, digest != membership.getDigest());
+				break;
+			case Protocol.PING_REQ:
+				sendProbe(Protocol.PING, id, member, origin, member, false);
+				break;
+			case Protocol.PING_ACK:
+				if (origin == Protocol.getSourceAddress()) {
+					membership.ack(member, id);
+				} else {
+					sendProbe(Protocol.PING_ACK, id, member, origin, origin, false);
+				}
+				break;
+		}
+	}
+
+	/**
+	 * Start a probe period: declare the members dead that did not refute their suspicion, and probe the next member. <br>
+	 * A member that doesn't answer in time is probed through other members, so a single bad link doesn't get it suspected.
+	 * @param now The current time in milliseconds
+	 */
+	private void probe(long now) {
+		for (Membership.Member member : membership.tick(now)) {
+			memberFailed(member);
+		}
+
+		int target = membership.getProbeTarget();
+
+		if (target != -1) {
+			int id = membership.getProbeId();
+			sendProbe(Protocol.PING, id, target, Protocol.getSourceAddress(), target, false);
+
+			schedule(() -> {
+				if (!membership.isAcked(id)) {
+					for (int relay : membership.getRelays(target, Protocol.INDIRECT_PROBES)) {
+						sendProbe(Protocol.PING_REQ, id, target, Protocol.getSourceAddress(), relay, false);
+					}
+				}
+			}, now + Protocol.PROBE_TIMEOUT);
+		}
+	}
+
+	/**
+	 * Send a membership probe with the digest of our membership list and piggybacked changes
+	 * @param command The probe command
+	 * @param id The probe id
+	 * @param member The probed member
+	 * @param origin The member that wants the answer
+	 * @param destination The destination address
+	 * @param roster Whether to send the whole membership list instead of the latest changes
+	 */
+	private void sendProbe(String command, int id, int member, int origin, int destination, boolean roster) {
+		StringBuilder message = new StringBuilder(command + " " + id + " " + member + " " + origin + " " + Integer.toHexString(membership.getDigest()));
+		int room = Protocol.MAX_MEMBERSHIP_MESSAGE - message.length();
+
+		if (roster) {
+			membership.appendRoster(message, room);
+		} else {
+			membership.appendUpdates(message, room);
+		}
+
+		clientSender.sendProbe(message.toString(), destination);
+	}
+
+	/**
+	 * Answer the join request of a neighbor with a snapshot of our membership list, after a random delay so the neighbors don't all answer at once
+	 * @param source The source of the request
+	 * @param command The tokens of the request
+	 */
+	public void receiveJoin(int source, String[] command) {
+		receiveMembership(source, command, 2);
+
+		schedule(() -> {
+			StringBuilder message = new StringBuilder(Protocol.ROSTER);
+			membership.appendRoster(message, Protocol.MAX_MEMBERSHIP_MESSAGE - message.length());
+
+			clientSender.sendProbe(message.toString(), source);
+		}, System.currentTimeMillis() + ThreadLocalRandom.current().nextLong(Protocol.JOIN_JITTER + 1));
+	}
+
+	/**
+	 * Ask our neighbors for their membership list, so the users and their key exchanges are known right away instead of after their next beacons. <br>
+	 * The request doubles as our first beacon.
+	 */
+	private void sendJoin() {
+		StringBuilder message = new StringBuilder(Protocol.JOIN + " " + Membership.encodeName(getUser(Protocol.getSourceAddress()).getName()));
+		membership.appendUpdates(message, Protocol.MAX_MEMBERSHIP_MESSAGE - message.toString().getBytes().length);
+
+		clientSender.sendAliveBroadcast(message.toString());
+	}
+
+	/**
+	 * Send an 'alive' beacon to our neighbors, with our name, the delivery ratios of our neighbors and piggybacked membership changes
+	 */
+	private void sendAliveBroadcast() {
+		String name = getUser(Protocol.getSourceAddress()).getName();
+		membership.setName(name);
+
+		StringBuilder message = new StringBuilder(Protocol.ALIVE + " " + Membership.encodeName(name) + neighborTable.getReport());
+		membership.appendUpdates(message, Protocol.MAX_MEMBERSHIP_MESSAGE - message.toString().getBytes().length);
+
+		clientSender.sendAliveBroadcast(message.toString());
+	}
+
+	/**
+	 * Add a member that joined the chat room as a user
+	 * @param member The member
+	 */
+	private void memberJoined(Membership.Member member) {
+		if (getUser(member.getAddress()) == null) {
+			User user = new User(member.getName(), null);
+			user.setAddress(member.getAddress());
+			addUser(user);
+
+			notifyGUI(Protocol.ENTER + " " + user.getName());
+		}
+	}
+
+	/**
+	 * Remove a member that was declared dead
+	 * @param member The member
+	 */
+	private void memberFailed(Membership.Member member) {
+		User user = getUser(member.getAddress());
+
+		if (user != null) {
+			removeUser(member.getAddress());
+			notifyGUI(Protocol.PART + " " + user.getName());
+		}
 	}
 
 	/**
@@ -228,25 +512,187 @@ public class Client extends Observable implements Runnable {
 	 * @return The user object
 	 */
 	public User getUser(int address) {
-		return connectedUsers.get(address);
+		PeerSession session = peers.get(address);
+
+		return session != null ? session.getUser() : null;
 	}
 
 	/**
 	 * Acknowledge the given acknowledgement number
 	 * @param ack The acknowledgement number to acknowledge
+	 * @param sack The selective acknowledgement bitmap
 	 * @param source  The source
 	 */
-	public void acknowledge(int source, int ack) {
-		clientSender.acknowledge(source, ack);
+	public void acknowledge(int source, int ack, ByteBuffer sack) {
+		clientSender.acknowledge(source, ack, sack);
 	}
 
 	/**
 	 * Send an acknowledgement to the given destination
 	 * @param destination The destination address
 	 * @param ack The acknowledgement number
+	 * @param sack The selective acknowledgement bitmap
+	 */
+	public void sendAck(int destination, int ack, byte[] sack) {
+		clientSender.sendAck(destination, ack, sack, false);
+	}
+
+	/**
+	 * Acknowledge group addressed packets for a member
+	 * @param source The address of the member
+	 * @param ack The acknowledgement number
+	 * @param sack The selective acknowledgement bitmap
+	 */
+	public void acknowledgeGroup(int source, int ack, ByteBuffer sack) {
+		clientSender.acknowledgeGroup(source, ack, sack);
+	}
+
+	/**
+	 * Send an acknowledgement for group addressed packets to the given destination
+	 * @param destination The destination address
+	 * @param ack The acknowledgement number
+	 * @param sack The selective acknowledgement bitmap
 	 */
-	public void sendAck(int destination, int ack) {
-		clientSender.sendAck(destination, ack);
+	public void sendGroupAck(int destination, int ack, byte[] sack) {
+		clientSender.sendAck(destination, ack, sack, true);
+	}
+
+	/**
+	 * Request lost group addressed packets from their source
+	 * @param source The source of the packets
+	 * @param first The sequence number of the first missing packet
+	 * @param missing Bitmap of the missing packets
+	 */
+	public void sendNack(int source, int first, byte[] missing) {
+		clientSender.sendNack(source, first, missing);
+	}
+
+	/**
+	 * Repair lost group addressed packets a member requested
+	 * @param first The sequence number of the first missing packet
+	 * @param missing Bitmap of the missing packets
+	 */
+	public void repair(int first, ByteBuffer missing) {
+		clientSender.repair(first, missing);
+	}
+
+	/**
+	 * @return The sessions with the users
+	 */
+	public PeerTable getPeerTable() {
+		return peers;
+	}
+
+	/**
+	 * @return The routing table for unicast packets
+	 */
+	public RoutingTable getRoutingTable() {
+		return routingTable;
+	}
+
+	/**
+	 * @return The neighbor table with the hop distance of every user and the link quality of our neighbors
+	 */
+	public NeighborTable getNeighborTable() {
+		return neighborTable;
+	}
+
+	/**
+	 * @return The broadcast suppressor deciding which broadcasts are forwarded, it also counts the rebroadcasts that were saved
+	 */
+	public BroadcastSuppressor getBroadcastSuppressor() {
+		return broadcastSuppressor;
+	}
+
+	/**
+	 * Set the policy that decides which broadcasts are forwarded
+	 * @param policy The broadcast policy
+	 */
+	public void setBroadcastPolicy(BroadcastPolicy policy) {
+		broadcastSuppressor.setPolicy(policy);
+	}
+
+	/**
+	 * @return The key our group addressed messages are encrypted with
+	 */
+	public String getGroupKey() {
+		return groupKey;
+	}
+
+	/**
+	 * Get the key the group addressed messages of a user are encrypted with
+	 * @param source The address of the user
+	 * @return The key, or null if the user did not send it yet
+	 */
+	public String getGroupKey(int source) {
+		PeerSession session = peers.get(source);
+
+		return session != null ? session.getGroupKey() : null;
+	}
+
+	/**
+	 * Set the key the group addressed messages of a user are encrypted with
+	 * @param source The address of the user
+	 * @param key The key
+	 * @param signingKey The public key the leave message of the user is verified with, null if it was not sent
+	 */
+	public void setGroupKey(int source, String key, String signingKey) {
+		PeerSession session = peers.getOrCreate(source);
+		session.setGroupKey(key);
+
+		if (signingKey != null) {
+			session.setSigningKey(DiffieHelman.stringToPublicKey(signingKey));
+		}
+	}
+
+	/**
+	 * Resume retransmissions to a user that was marked as suspect
+	 * @param address The user's address
+	 */
+	public void resume(int address) {
+		clientSender.resume(address);
+	}
+
+	/**
+	 * Enable or disable forward error correction, when enabled other users are asked to send parity packets once packets from them get lost
+	 * @param errorCorrection Whether or not forward error correction should be used
+	 */
+	public void setErrorCorrection(boolean errorCorrection) {
+		this.errorCorrection = errorCorrection;
+	}
+
+	/**
+	 * @return Whether or not forward error correction is enabled
+	 */
+	public boolean isErrorCorrection() {
+		return errorCorrection;
+	}
+
+	/**
+	 * Set the amount of data packets per parity packet sent to a destination
+	 * @param destination The destination address
+	 * @param groupSize The group size, 0 disables forward error correction
+	 */
+	public void setParityGroupSize(int destination, int groupSize) {
+		clientSender.setParityGroupSize(destination, groupSize);
+	}
+
+	/**
+	 * Let an outgoing packet carry the pending acknowledgement for its destination
+	 * @param destination The destination address
+	 * @param packet The outgoing packet
+	 */
+	public void piggybackAck(int destination, Packet packet) {
+		clientListener.piggybackAck(destination, packet);
+	}
+
+	/**
+	 * Schedule a task on the event loop
+	 * @param task The task to run
+	 * @param deadline The time in milliseconds at which the task should run
+	 */
+	public void schedule(Runnable task, long deadline) {
+		eventLoop.schedule(task, deadline);
 	}
 
 	/**
@@ -255,7 +701,7 @@ public class Client extends Observable implements Runnable {
 	 * @param addresses The destination addresses (0 or more)
 	 */
 	public void addDestination(String name, int... addresses) {
-		destinations.put(name, new HashSet<Integer>());
+		destinations.put(name, ConcurrentHashMap.newKeySet());
 
 		for (int address : addresses) {
 			destinations.get(name).add(address);
@@ -263,72 +709,123 @@ public class Client extends Observable implements Runnable {
 	}
 
 	/**
-	 * Send a ChatMessage object
+	 * Send a ChatMessage object, the message is queued and sent by the event loop. <br>
+	 * The futures of most recipients complete once the recipient acknowledged the message. A main chat room with at least Protocol.NACK_MIN_MEMBERS
+	 * members is sent to once and repaired on request (NACK) instead, its members don't acknowledge anything. Their futures are shared and only
+	 * complete once the message aged out of the repair buffer, after Protocol.NACK_RETENTION, which means no member was missing it as far as we know.
 	 * @param message The ChatMessage object to send
+	 * @return Map with the delivery future of every recipient
 	 */
-	public void sendChatMessage(ChatMessage message) {
+	public Map<Integer, CompletableFuture<Void>> sendChatMessage(ChatMessage message) {
+		Map<Integer, CompletableFuture<Void>> deliveries = new HashMap<>();
+		Set<Integer> members = new HashSet<>();
+
 		for (int address : destinations.get(message.getDestination())) {
-			clientSender.sendChatMessage(message, address);
+			// Main chat messages are sent once to all users we finished a key exchange with, the others get their own copy
+			PeerSession session = peers.get(address);
+
+			if (message.getDestination().equals(Protocol.MAINCHAT) && session != null && session.isExchanged()) {
+				// Send our group key first, it is encrypted with the key of the exchange
+				if (session.markGroupKeySent()) {
+					sendMessage(getGroupKeyMessage(), address);
+				}
+
+				members.add(address);
+			} else {
+				deliveries.put(address, clientSender.sendChatMessage(message, address));
+			}
 		}
+
+		// Large groups repair lost packets on request, so not every member has to acknowledge every packet
+		if (members.size() >= Protocol.NACK_MIN_MEMBERS) {
+			deliveries.putAll(clientSender.sendNackChatMessage(message, members));
+		} else {
+			deliveries.putAll(clientSender.sendGroupChatMessage(message, members));
+		}
+
+		return deliveries;
 	}
 
 	/**
-	 * Send a message
+	 * Send a message, the message is queued and sent by the event loop
 	 * @param message The message to send
 	 * @param destination The destination address
+	 * @return Map with the delivery future of every recipient
 	 */
-	public void sendMessage(String message, String destination) {
+	public Map<Integer, CompletableFuture<Void>> sendMessage(String message, String destination) {
+		Map<Integer, CompletableFuture<Void>> deliveries = new HashMap<>();
+
 		for (int address : destinations.get(destination)) {
-			clientSender.sendMessage(message, address);
+			deliveries.put(address, clientSender.sendMessage(message, address));
 		}
+
+		return deliveries;
 	}
 
 	/**
-	 * Send a message
+	 * Send a message, the message is queued and sent by the event loop
 	 * @param message The message to send
 	 * @param destination The destination address
+	 * @return Future that completes once the destination acknowledged the message, or fails if it could not be delivered
 	 */
-	public void sendMessage(String message, int destination) {
-		clientSender.sendMessage(message, destination);
+	public CompletableFuture<Void> sendMessage(String message, int destination) {
+		return clientSender.sendMessage(message, destination);
 	}
 
 	/**
 	 * Forward the given packet
 	 * @param packet The packet to forward
+	 * @param previousHop The neighbor we received the packet from, Protocol.BROADCAST if unknown
 	 */
-	public void forwardPacket(DatagramPacket packet) {
-		clientSender.forwardPacket(packet);
+	public void forwardPacket(Packet packet, int previousHop) {
+		clientSender.forwardPacket(packet, previousHop);
 	}
 	
 	/**
 	 * Notify the GUI
 	 * @param arg An object to send to the GUI
 	 */
-	public void notifyGUI(Object arg) {
+	public synchronized void notifyGUI(Object arg) {
 		setChanged();
 		notifyObservers(arg);
 	}
 
+	/**
+	 * Probe the next member every probe period and send an 'alive' beacon every Protocol.ALIVE_RATE, it reschedules itself on the event loop
+	 */
+	private void heartbeat() {
+		if (!connected) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		probe(now);
+
+		// Let our neighbors know we're here
+		if (now - lastAliveBroadcast >= Protocol.ALIVE_RATE) {
+			sendAliveBroadcast();
+			lastAliveBroadcast = now;
+		}
+
+		schedule(this::heartbeat, now + Protocol.PROBE_PERIOD);
+	}
+
 	@Override
 	public void run() {
+		membership.setName(getUser(Protocol.getSourceAddress()).getName());
 		connect();
 
-		while (connected){
-			// Check if we should send an 'alive' broadcast
-			if (System.currentTimeMillis() - lastAliveBroadcast > Protocol.ALIVE_RATE) {
-				// Remove inactive users
-				removeInactiveUsers();
-
-				// Send an 'alive' broadcast to let others know we're here
-				clientSender.sendAliveBroadcast(Protocol.ALIVE + " " + connectedUsers.get(Protocol.getSourceAddress()).getName(), Protocol.BROADCAST);
+		if (connected) {
+			eventLoop.execute(() -> {
+				// The join request doubles as our first beacon
+				sendJoin();
 				lastAliveBroadcast = System.currentTimeMillis();
-			}
 
-			try {
-				Thread.sleep(5);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+				heartbeat();
+			});
+
+			// The network layer runs on this thread until we disconnect
+			eventLoop.run();
 		}
 	}
 }
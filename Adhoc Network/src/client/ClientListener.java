@@ -1,59 +1,92 @@
 package client;
 
 import dataobjects.ChatMessage;
+import dataobjects.MessageCodec;
 import dataobjects.Packet;
-import dataobjects.User;
 import encryption.DiffieHelman;
 import encryption.Encryption;
+import utils.BroadcastSuppressor;
+import utils.DuplicateFilter;
+import utils.KeyedExecutor;
+import utils.NackReceiveBuffer;
+import utils.PacketPool;
+import utils.ParityDecoder;
+import utils.PeerExecutor;
+import utils.PeerSession;
+import utils.PeerTable;
 import utils.Protocol;
+import utils.ReassemblyBuffer;
 import utils.ReceiveBuffer;
+import utils.ShardedExecutor;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.net.DatagramPacket;
-import java.net.MulticastSocket;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
- * Receive buffer class, handles receiving packets
+ * Receive buffer class, handles the packets the event loop receives. <br>
+ * The event loop checks and forwards the packets, the packets addressed to us are decrypted and handled by a pool of decoders sharded by source,
+ * or with THREAD_PER_PEER by a virtual thread per source up to MAX_PEER_THREADS. Sending and retransmissions stay on the event loop.
  *
  * @author Frank
  */
-public class ClientListener extends Thread {
+public class ClientListener {
 
 	private final int WINDOW_SIZE;
 
-	private Map<Integer, ReceiveBuffer> openConnections;
-	private ReceiveBuffer forwardBuffer;
+	private static final ByteBuffer NO_SACK = ByteBuffer.allocate(0);
+
+	private PeerTable peers;
+	private DuplicateFilter floodFilter;
+	private PacketPool packetPool;
+	private KeyedExecutor decoders;
 	
-	private MulticastSocket socket;
 	private Client client;
 	
-	private boolean connected = false;
+	private volatile boolean connected = false;
 	
 	/**
 	 * Constructor
 	 * @param windowSize The maximum window size for the send windows
-	 * @param socket The multicast socket
 	 * @param client The client object
 	 */
-	public ClientListener(int windowSize, MulticastSocket socket, Client client) {
-		this.socket = socket;
+	public ClientListener(int windowSize, Client client) {
 		this.client = client;
 		WINDOW_SIZE = windowSize;
-		openConnections = new LinkedHashMap<>();
-		forwardBuffer = new ReceiveBuffer(WINDOW_SIZE);
+		peers = client.getPeerTable();
+		floodFilter = new DuplicateFilter(Protocol.FLOOD_FILTER_BITS, Protocol.FLOOD_PERIOD);
+		// The packets waiting in the queues of the decoders are pooled packets too
+		packetPool = new PacketPool(Protocol.DECODE_WORKERS * Protocol.DECODE_QUEUE_SIZE);
+		ThreadFactory virtualThreads = PeerExecutor.getVirtualThreads();
+		ShardedExecutor sharded = new ShardedExecutor("Decoder", Protocol.DECODE_WORKERS, Protocol.DECODE_QUEUE_SIZE);
+
+		if (Protocol.THREAD_PER_PEER && virtualThreads != null) {
+			decoders = new PeerExecutor("Peer", virtualThreads, Protocol.DECODE_QUEUE_SIZE, Protocol.PEER_THREAD_IDLE, Protocol.MAX_PEER_THREADS, sharded);
+		} else {
+			decoders = sharded;
+		}
 		connected = true;
 	}
 
 	/**
-	 * Disconnect
+	 * Disconnect, the packets that are waiting to be decoded are dropped
 	 */
 	public void disconnect() {
 		connected = false;
+		decoders.shutdown();
+	}
+
+	/**
+	 * Run a task on the decoder of a user, after the received packets of the user that are waiting
+	 * @param source The address of the user
+	 * @param task The task to run
+	 * @return true if the task will run, false if the queue of the decoder is full or the decoders were stopped
+	 */
+	public boolean execute(int source, Runnable task) {
+		return decoders.execute(source, task);
 	}
 
 	/**
@@ -61,9 +94,7 @@ public class ClientListener extends Thread {
 	 * @param destination The destination of the connection
 	 */
 	public void openConnection(int destination) {
-		if (!openConnections.containsKey(destination)) {
-			openConnections.put(destination, new ReceiveBuffer(WINDOW_SIZE));
-		}
+		peers.getOrCreate(destination).openReceive(WINDOW_SIZE);
 	}
 
 	/**
@@ -71,207 +102,659 @@ public class ClientListener extends Thread {
 	 * @param destination The destination of the connection
 	 */
 	public void closeConnection(int destination) {
-		// Check if the connection exists
-		if (openConnections.containsKey(destination)) {
-			openConnections.remove(destination);
+		PeerSession session = peers.get(destination);
+
+		if (session != null) {
+			session.closeReceive();
 		}
 	}
 
 	/**
 	 * Extract a ChatMessage object out of a packet
-	 * @param packet The packet containing the ChatMessage object
+	 * @param payload The payload containing the ChatMessage object
 	 */
-	public void receiveChatMessage(Packet packet) {
+	public void receiveChatMessage(ByteBuffer payload) {
 		try {
-			// ByteArray and Object input streams to read the object stored in the packet payload
-		    ByteArrayInputStream byteStream = new ByteArrayInputStream(packet.getPayload());
-		    ObjectInputStream objectStream = new ObjectInputStream(new BufferedInputStream(byteStream));
-
-			// Read the ChatMessage object
-		    ChatMessage message = (ChatMessage) objectStream.readObject();
+			// Decode the ChatMessage object
+			ChatMessage message = MessageCodec.decode(payload);
 
 			// Add or update the user
 			message.getUser().setLastSeen();
 			client.addUser(message.getUser());
 
 			// Notify the GUI of the received chat message
-		    client.notifyGUI(message);
-
-			// Close the input streams
-		    byteStream.close();
-		    objectStream.close();
-		} catch (ClassNotFoundException | IOException e) {
+			client.notifyGUI(message);
+		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
-	
-	@Override
-	public void run() {
-		while (connected) {
-			try {
-				// Try to receive a packet
-				DatagramPacket datagramPacket = new DatagramPacket(new byte[Packet.SIZE], Packet.SIZE);
-				socket.receive(datagramPacket);
-				Packet packet = new Packet(datagramPacket);
-
-				// Check the checksum
-				if (packet.getChecksum() == packet.calculateChecksum()) {
-					// If the packet was not sent by us
-					if (packet.getSource() != Protocol.getSourceAddress() && Protocol.inetAddressAsInt(datagramPacket.getAddress()) != Protocol.getSourceAddress()) {
-						// If we are the destination
-						if (packet.getDestination() == Protocol.BROADCAST || packet.getDestination() == Protocol.getSourceAddress()) {
-							// If the packet is encrypted
-							if (packet.isFlagSet(Packet.ENCRYPTION) && packet.isFlagSet(Packet.KEYEXCHANGED)) {
-								// End the key exchange
-								client.endKeyExchange(packet.getSource());
-
-								// If possible, decrypt the packet with the symmetric key from a key exchange
-								byte[] decryptedPayload = Encryption.decrypt(packet.getPayload(), client.getSymmetricKey(packet.getSource()));
-								packet.setPayload(decryptedPayload);
-								packet.setLength(Packet.HEADER_SIZE + decryptedPayload.length);
-
-							// Packets with the broadcast address as the destination should be decrypted with the standard key
-							} else if (packet.isFlagSet(Packet.ENCRYPTION)) {
-								// Decrypt the packet
-								byte[] decryptedPayload = Encryption.decrypt(packet.getPayload(), null);
-								packet.setPayload(decryptedPayload);
-								packet.setLength(Packet.HEADER_SIZE + decryptedPayload.length);
-							}
-
-							// If it is an acknowledgement
-							if (packet.isFlagSet(Packet.ACK)) {
-								// Handle the acknowledgement
-								client.acknowledge(packet.getSource(), packet.getAck());
-
-							// If the payload is a ChatMessage object
-							} else if (packet.isFlagSet(Packet.CHATMESSAGE)) {
-								// If the connection is open and the packet is accepted
-								if (openConnections.containsKey(packet.getSource()) && openConnections.get(packet.getSource()).addPacket(packet)) {
-									// Parse the ChatMessage object
-									receiveChatMessage(packet);
-								}
-
-								// Acknowledge the received packet
-								client.sendAck(packet.getSource(), packet.getSeq() + 1);
-
-							// The payload is a command
-							} else {
-								// Split the command on whitespaces
-								String[] command = new String(packet.getPayload()).split("\\s+");
-
-								// Check the command type
-								switch (command[0]) {
-									// Start a private chat
-									case Protocol.PRIVCHAT:
-										// If the connection is open and the packet is accepted
-										if (openConnections.containsKey(packet.getSource()) && openConnections.get(packet.getSource()).addPacket(packet)) {
-											// Start the private chat
-											client.addDestination(command[1], packet.getSource());
-											client.notifyGUI(command[0] + " " + command[1]);
-										}
-
-										// Acknowledge the received packet
-										client.sendAck(packet.getSource(), packet.getSeq() + 1);
-										break;
-									// Refresh the user's 'alive' status
-									case Protocol.ALIVE:
-										User user = client.getUser(packet.getSource());
-
-										// If we haven't seen this user before
-										if (user == null) {
-											// Create a new user and add it to the list of connected users
-											User newUser = new User(command[1], null);
-											newUser.setAddress(packet.getSource());
-											client.addUser(newUser);
-
-											client.notifyGUI(Protocol.NOTIFY + " User " + newUser.getName() + " has entered the chat.");
-										} else {
-											// Update the user's last seen timestamp
-											user.setLastSeen();
-										}
-
-										// Forward the alive broadcast
-										client.forwardPacket(datagramPacket);
-										break;
-
-									// Someone changed their name
-									case Protocol.NAME_CHANGE:
-										// If the connection is open and the packet is accepted
-										if (openConnections.containsKey(packet.getSource()) && openConnections.get(packet.getSource()).addPacket(packet)) {
-											client.notifyGUI(Protocol.NOTIFY + " User " + command[1] + " changed their name to " + command[2] + ".");
-											client.getUser(packet.getSource()).setName(command[2]);
-										}
-
-										// Acknowledge the received packet
-										client.sendAck(packet.getSource(), packet.getSeq() + 1);
-										break;
-
-									// We have received a public key
-									case Protocol.PUB_KEY:
-										// Open a connection with the packet sender
-										client.openConnection(packet.getSource());
-
-										// Acknowledge the received packet
-										client.sendAck(packet.getSource(), packet.getSeq() + 1);
-
-										// If the connection is open and the packet is accepted
-										if (openConnections.containsKey(packet.getSource()) && openConnections.get(packet.getSource()).addPacket(packet)) {
-											String generatedKey = Encryption.generateKey();
-
-											// Check if we aren't already exchanging keys with this user
-											if (client.addSymmetricKey(packet.getSource(), generatedKey)) {
-												client.sendMessage(Protocol.SYM_KEY + " " + Encryption.base64Encode(DiffieHelman.encrypt(generatedKey.getBytes(), DiffieHelman.stringToPublicKey(new String(packet.getPayload()).split("\\s+", 2)[1]))), packet.getSource());
-											}
-										}
-										break;
-
-									// We have received a symmetric key
-									case Protocol.SYM_KEY:
-										// Acknowledge the received packet
-										client.sendAck(packet.getSource(), packet.getSeq() + 1);
-
-										// If the connection is open and the packet is accepted
-										if (openConnections.containsKey(packet.getSource()) && openConnections.get(packet.getSource()).addPacket(packet)) {
-											client.addAndDecryptSymmetricKey(packet.getSource(), new String(packet.getPayload()).split("\\s+", 2)[1]);
-										}
-										break;
-
-									// Successfully exchanged symmetric keys for encryption
-									case Protocol.KEY_RECEIVED:
-										// Acknowledge the received packet
-										client.sendAck(packet.getSource(), packet.getSeq() + 1);
-
-										// If the connection is open and the packet is accepted
-										if (openConnections.containsKey(packet.getSource()) && openConnections.get(packet.getSource()).addPacket(packet)) {
-											client.endKeyExchange(packet.getSource());
-										}
-										break;
-
-									// Command not known
-									default:
-										System.err.println("Received an unknown command.");
-										break;
-								}
-							}
-
-						// The packet was not meant for us
-						} else {
-							// If we haven't forwarded this packet yet
-							if (forwardBuffer.addPacket(packet)) {
-								// Forward the packet
-								client.forwardPacket(datagramPacket);
-							}
+
+	/**
+	 * Decode the payload of a buffer as a string, the buffer may be direct or read-only and its position is left as it is
+	 * @param payload The payload to decode
+	 * @return The payload as a string
+	 */
+	private static String payloadToString(ByteBuffer payload) {
+		byte[] bytes = new byte[payload.remaining()];
+		payload.duplicate().get(bytes);
+
+		return new String(bytes);
+	}
+
+	/**
+	 * Check if a packet is accepted by the receive buffer of its source
+	 * @param packet The packet to check
+	 * @param reassembled Whether or not the packet was reassembled from fragments that were already accepted
+	 * @return true if the connection is open and the packet is accepted, else false
+	 */
+	private boolean accept(Packet packet, boolean reassembled) {
+		if (reassembled) {
+			return true;
+		}
+
+		// Packets that are repaired on request have a buffer of their own
+		if (isRepairable(packet)) {
+			NackReceiveBuffer nackBuffer = getNackReceiveBuffer(packet.getSource());
+
+			return nackBuffer != null && nackBuffer.addPacket(packet);
+		}
+
+		ReceiveBuffer receiveBuffer = getReceiveBuffer(packet);
+
+		return receiveBuffer != null && receiveBuffer.addPacket(packet);
+	}
+
+	/**
+	 * @param packet A packet
+	 * @return Whether or not the packet is a group addressed packet that is repaired on request instead of acknowledged
+	 */
+	private static boolean isRepairable(Packet packet) {
+		return packet.isFlagSet(Packet.GROUP) && packet.isFlagSet(Packet.NACK) && !packet.isFlagSet(Packet.ACK);
+	}
+
+	/**
+	 * Get the receive buffer for a packet, group addressed packets have their own sequence numbers
+	 * @param packet The packet
+	 * @return The receive buffer, or null if the connection with the source is not open
+	 */
+	private ReceiveBuffer getReceiveBuffer(Packet packet) {
+		PeerSession session = peers.get(packet.getSource());
+
+		if (session == null) {
+			return null;
+		}
+
+		return packet.isFlagSet(Packet.GROUP) ? session.getGroupReceiveBuffer() : session.getReceiveBuffer();
+	}
+
+	/**
+	 * @param source The source address
+	 * @return The receive buffer of the packets of the source that are repaired on request, or null if the connection with the source is not open
+	 */
+	private NackReceiveBuffer getNackReceiveBuffer(int source) {
+		PeerSession session = peers.get(source);
+
+		return session != null ? session.getNackReceiveBuffer() : null;
+	}
+
+	/**
+	 * Acknowledge the packets received from the source of a packet. <br>
+	 * The acknowledgement is delayed for up to Protocol.ACK_DELAY so it can cover several packets or ride along with outgoing data. <br>
+	 * Reassembled packets are not acknowledged since their fragments already were, and packets for unopened connections are left to be retransmitted.
+	 * @param packet The received packet
+	 * @param reassembled Whether or not the packet was reassembled from fragments
+	 */
+	private void acknowledge(Packet packet, boolean reassembled) {
+		// Packets that are repaired on request are not acknowledged, lost ones are requested instead
+		if (isRepairable(packet)) {
+			requestMissing(packet.getSource(), Protocol.NACK_DELAY);
+			return;
+		}
+
+		int source = packet.getSource();
+		boolean groupAddressed = packet.isFlagSet(Packet.GROUP);
+		ReceiveBuffer receiveBuffer = getReceiveBuffer(packet);
+
+		if (!reassembled && receiveBuffer != null) {
+			// Send the acknowledgement right away if enough packets are waiting for one, else make sure it is sent after the delay
+			if (receiveBuffer.addUnacked()) {
+				sendAck(source, receiveBuffer, groupAddressed);
+			} else if (receiveBuffer.scheduleAck()) {
+				client.schedule(() -> sendAck(source, receiveBuffer, groupAddressed), System.currentTimeMillis() + Protocol.ACK_DELAY);
+			}
+		}
+	}
+
+	/**
+	 * Send the pending acknowledgement for a source, if it has not been sent or piggybacked already
+	 * @param source The source address
+	 * @param receiveBuffer The receive buffer of the source
+	 * @param groupAddressed Whether or not the receive buffer is for the group addressed packets of the source
+	 */
+	private void sendAck(int source, ReceiveBuffer receiveBuffer, boolean groupAddressed) {
+		int ack;
+		byte[] sack;
+
+		synchronized (receiveBuffer) {
+			if (!receiveBuffer.takeUnacked(false)) {
+				return;
+			}
+
+			ack = receiveBuffer.getAck();
+			sack = receiveBuffer.getSack();
+		}
+
+		if (groupAddressed) {
+			client.sendGroupAck(source, ack, sack);
+		} else {
+			client.sendAck(source, ack, sack);
+		}
+	}
+
+	/**
+	 * Schedule a request for the lost group addressed packets of a source, if packets are missing and no request was scheduled yet. <br>
+	 * A random delay is added so not all members send their request at once, the later ones are suppressed when they see an earlier one.
+	 * @param source The source address
+	 * @param delay The minimum delay in milliseconds
+	 */
+	private void requestMissing(int source, long delay) {
+		NackReceiveBuffer nackBuffer = getNackReceiveBuffer(source);
+
+		if (nackBuffer != null && nackBuffer.scheduleNack()) {
+			client.schedule(() -> sendNack(source, nackBuffer), System.currentTimeMillis() + delay + ThreadLocalRandom.current().nextLong(Protocol.NACK_JITTER + 1));
+		}
+	}
+
+	/**
+	 * Request the lost group addressed packets of a source, unless another member already did, and keep requesting until they are repaired
+	 * @param source The source address
+	 * @param nackBuffer The receive buffer of the source
+	 */
+	private void sendNack(int source, NackReceiveBuffer nackBuffer) {
+		byte[] missing;
+		int first;
+
+		synchronized (nackBuffer) {
+			missing = nackBuffer.takeNack();
+			first = nackBuffer.getFirstMissing();
+		}
+
+		if (missing != null) {
+			client.sendNack(source, first, missing);
+		}
+
+		requestMissing(source, Protocol.NACK_RETRY);
+	}
+
+	/**
+	 * Let an outgoing packet carry the pending acknowledgement for its destination. <br>
+	 * Only cumulative acknowledgements are piggybacked, the selective acknowledgement bitmap needs the payload.
+	 * @param destination The destination address
+	 * @param packet The outgoing packet, its checksum should be set afterwards
+	 */
+	public void piggybackAck(int destination, Packet packet) {
+		PeerSession session = peers.get(destination);
+		ReceiveBuffer receiveBuffer = session != null ? session.getReceiveBuffer() : null;
+
+		if (receiveBuffer != null) {
+			synchronized (receiveBuffer) {
+				if (receiveBuffer.takeUnacked(true)) {
+					packet.setAck(receiveBuffer.getAck());
+					packet.setFlag(Packet.PIGGYBACK, true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decrypt a payload
+	 * @param packet The packet the payload was received in
+	 * @param data The array containing the payload
+	 * @param offset The offset of the payload
+	 * @param length The length of the payload
+	 * @return The decrypted payload, or a view of the data if the packet was not encrypted
+	 */
+	private ByteBuffer decrypt(Packet packet, byte[] data, int offset, int length) {
+		// Group addressed packets are encrypted with the group key of their source
+		if (packet.isFlagSet(Packet.ENCRYPTION) && packet.isFlagSet(Packet.GROUP)) {
+			return ByteBuffer.wrap(Encryption.decrypt(data, offset, length, client.getGroupKey(packet.getSource())));
+
+		// If the packet is encrypted
+		} else if (packet.isFlagSet(Packet.ENCRYPTION) && packet.isFlagSet(Packet.KEYEXCHANGED)) {
+			// End the key exchange
+			client.endKeyExchange(packet.getSource());
+
+			// If possible, decrypt the packet with the symmetric key from a key exchange
+			return ByteBuffer.wrap(Encryption.decrypt(data, offset, length, client.getSymmetricKey(packet.getSource())));
+
+		// Packets with the broadcast address as the destination should be decrypted with the standard key
+		} else if (packet.isFlagSet(Packet.ENCRYPTION)) {
+			// Decrypt the packet
+			return ByteBuffer.wrap(Encryption.decrypt(data, offset, length, null));
+		}
+
+		return ByteBuffer.wrap(data, offset, length).slice();
+	}
+
+	/**
+	 * Add a fragment to the reassembly buffer of its source and handle the payload once it is complete
+	 * @param packet The fragment
+	 */
+	private void receiveFragment(Packet packet) {
+		// If the connection is open and the fragment is accepted
+		PeerSession session = peers.get(packet.getSource());
+		ReassemblyBuffer reassemblyBuffer = session != null ? session.getReassemblyBuffer() : null;
+
+		if (reassemblyBuffer != null && accept(packet, false)) {
+			byte[] payload = reassemblyBuffer.addFragment(packet);
+
+			// If this was the last missing fragment, handle the complete payload
+			if (payload != null) {
+				handlePayload(packet, decrypt(packet, payload, 0, payload.length), true);
+			}
+		}
+
+		// Acknowledge the received fragment
+		acknowledge(packet, false);
+	}
+
+	/**
+	 * Handle the (decrypted) payload of a packet
+	 * @param packet The packet, or the last fragment if the payload was reassembled
+	 * @param payload The decrypted payload
+	 * @param reassembled Whether or not the payload was reassembled from fragments
+	 */
+	private void handlePayload(Packet packet, ByteBuffer payload, boolean reassembled) {
+		// If it is an acknowledgement
+		if (packet.isFlagSet(Packet.ACK)) {
+			// Handle the acknowledgement
+			if (packet.isFlagSet(Packet.NACK)) {
+				client.repair(packet.getAck(), payload);
+			} else if (packet.isFlagSet(Packet.GROUP)) {
+				client.acknowledgeGroup(packet.getSource(), packet.getAck(), payload);
+			} else {
+				client.acknowledge(packet.getSource(), packet.getAck(), payload);
+			}
+
+		// If the payload is a ChatMessage object
+		} else if (packet.isFlagSet(Packet.CHATMESSAGE)) {
+			// If the connection is open and the packet is accepted
+			if (accept(packet, reassembled)) {
+				// Parse the ChatMessage object
+				receiveChatMessage(payload);
+			}
+
+			// Acknowledge the received packet
+			acknowledge(packet, reassembled);
+
+		// The payload is a command
+		} else {
+			// Split the command on whitespaces
+			String[] command = payloadToString(payload).split("\\s+");
+
+			// Check the command type
+			switch (command[0]) {
+				// Start a private chat
+				case Protocol.PRIVCHAT:
+					// If the connection is open and the packet is accepted
+					if (accept(packet, reassembled)) {
+						// Start the private chat
+						client.addDestination(command[1], packet.getSource());
+						client.notifyGUI(command[0] + " " + command[1]);
+					}
+
+					// Acknowledge the received packet
+					acknowledge(packet, reassembled);
+					break;
+				// A neighbor's beacon refreshes its 'alive' status
+				case Protocol.ALIVE:
+					// The beacon carries the state of the user and the membership changes it piggybacks
+					client.receiveMembership(packet.getSource(), command, 2);
+
+					// The rest of the message reports how well the user hears its neighbors
+					client.getNeighborTable().addReport(packet.getSource(), Arrays.copyOfRange(command, 2, command.length));
+
+					setNackNext(packet);
+					break;
+
+				// A neighbor that just connected asks for our membership list
+				case Protocol.JOIN:
+					client.receiveJoin(packet.getSource(), command);
+
+					setNackNext(packet);
+					break;
+
+				// A neighbor's membership list, the answer to our join request
+				case Protocol.ROSTER:
+					client.receiveMembership(packet.getSource(), command, 1);
+
+					setNackNext(packet);
+					break;
+
+				// A user announced it disconnects
+				case Protocol.LEAVE:
+					client.receiveLeave(packet.getSource(), command);
+					break;
+
+				// Membership probes of other members
+				case Protocol.PING:
+				case Protocol.PING_REQ:
+				case Protocol.PING_ACK:
+					client.receiveProbe(packet.getSource(), command);
+
+					setNackNext(packet);
+					break;
+
+				// Someone changed their name
+				case Protocol.NAME_CHANGE:
+					// If the connection is open and the packet is accepted
+					if (accept(packet, reassembled)) {
+						client.notifyGUI(Protocol.NOTIFY + " User " + command[1] + " changed their name to " + command[2] + ".");
+						client.getUser(packet.getSource()).setName(command[2]);
+					}
+
+					// Acknowledge the received packet
+					acknowledge(packet, reassembled);
+					break;
+
+				// We have received a public key
+				case Protocol.PUB_KEY:
+					// Open a connection with the packet sender
+					client.openConnection(packet.getSource());
+
+					// Acknowledge the received packet
+					acknowledge(packet, reassembled);
+
+					// If the connection is open and the packet is accepted
+					if (accept(packet, reassembled)) {
+						String generatedKey = Encryption.generateKey();
+
+						// Check if we aren't already exchanging keys with this user
+						if (client.addSymmetricKey(packet.getSource(), generatedKey)) {
+							client.sendMessage(Protocol.SYM_KEY + " " + Encryption.base64Encode(DiffieHelman.encrypt(generatedKey.getBytes(), DiffieHelman.stringToPublicKey(payloadToString(payload).split("\\s+", 2)[1]))), packet.getSource());
+						}
+					}
+					break;
+
+				// We have received a symmetric key
+				case Protocol.SYM_KEY:
+					// Acknowledge the received packet
+					acknowledge(packet, reassembled);
+
+					// If the connection is open and the packet is accepted
+					if (accept(packet, reassembled)) {
+						client.addAndDecryptSymmetricKey(packet.getSource(), payloadToString(payload).split("\\s+", 2)[1]);
+					}
+					break;
+
+				// Successfully exchanged symmetric keys for encryption
+				case Protocol.KEY_RECEIVED:
+					// Acknowledge the received packet
+					acknowledge(packet, reassembled);
+
+					// If the connection is open and the packet is accepted
+					if (accept(packet, reassembled)) {
+						client.endKeyExchange(packet.getSource());
+					}
+					break;
+
+				// The source sent the key of its group addressed messages
+				case Protocol.GROUP_KEY:
+					// Acknowledge the received packet
+					acknowledge(packet, reassembled);
+
+					// If the connection is open and the packet is accepted
+					if (accept(packet, reassembled)) {
+						client.setGroupKey(packet.getSource(), command[1], command.length > 2 ? command[2] : null);
+					}
+					break;
+
+				// The source requests a different parity group size
+				case Protocol.FEC:
+					// Acknowledge the received packet
+					acknowledge(packet, reassembled);
+
+					// If the connection is open and the packet is accepted
+					if (accept(packet, reassembled)) {
+						client.setParityGroupSize(packet.getSource(), Integer.parseInt(command[1]));
+					}
+					break;
+
+				// Command not known
+				default:
+					System.err.println("Received an unknown command.");
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Handle a packet addressed to us
+	 * @param packet The packet
+	 */
+	private void receive(Packet packet) {
+		// Group addressed packets can't be read before their source sent its group key, the retransmission will be
+		if (packet.isFlagSet(Packet.GROUP) && !packet.isFlagSet(Packet.ACK) && client.getGroupKey(packet.getSource()) == null) {
+			return;
+		}
+
+		// Handle an acknowledgement that rides along with data
+		if (packet.isFlagSet(Packet.PIGGYBACK) && !packet.isFlagSet(Packet.ACK)) {
+			client.acknowledge(packet.getSource(), packet.getAck(), NO_SACK);
+		}
+
+		// Fragments are decrypted once all of them have been received
+		if (packet.isFlagSet(Packet.FRAGMENT)) {
+			receiveFragment(packet);
+		} else {
+			// Read the payload straight from the received packet, decrypted payloads are kept apart so the packet can still be forwarded
+			handlePayload(packet, decrypt(packet, packet.getData(), Packet.HEADER_SIZE, packet.getPayloadLength()), false);
+		}
+	}
+
+	/**
+	 * Keep a received data packet for forward error correction, and request a different parity group size if the loss rate changed
+	 * @param session The session with the source of the packet
+	 * @param packet The data packet
+	 */
+	private void addParityPacket(PeerSession session, Packet packet) {
+		ParityDecoder parityDecoder = session.getParityDecoder();
+
+		if (parityDecoder != null) {
+			parityDecoder.addPacket(packet);
+
+			int groupSize = parityDecoder.takeGroupSizeChange(client.isErrorCorrection());
+
+			if (groupSize >= 0) {
+				client.sendMessage(Protocol.FEC + " " + groupSize, packet.getSource());
+			}
+		}
+	}
+
+	/**
+	 * Handle a received parity packet, a lost packet of its group is rebuilt and handled as if it was received
+	 * @param session The session with the source of the packet
+	 * @param packet The parity packet
+	 */
+	private void receiveParity(PeerSession session, Packet packet) {
+		ParityDecoder parityDecoder = session.getParityDecoder();
+
+		if (parityDecoder != null) {
+			Packet recovered = parityDecoder.addParity(packet);
+
+			if (recovered != null) {
+				receive(recovered);
+			}
+		}
+	}
+
+	/**
+	 * Handle a received packet
+	 * @param packet The pooled packet the data was received in
+	 * @param received The amount of bytes that were received
+	 * @param sender The address of the neighbor that sent the packet
+	 * @return true if the packet was handed to its decoder, which releases it, false if it can be released right away
+	 */
+	private boolean handlePacket(Packet packet, int received, InetAddress sender) {
+		// Check the checksum
+		if (packet.hasValidLength(received) && packet.getChecksum() == packet.calculateChecksum()) {
+			int previousHop = Protocol.inetAddressAsInt(sender);
+
+			// Multicast loopback is off so our own transmissions don't come back, but our neighbors still forward our packets back to us
+			if (packet.getSource() != Protocol.getSourceAddress()) {
+				// Every copy we overhear is a path back to its source, the sender of the copy is a neighbor
+				client.getRoutingTable().addRoute(previousHop, previousHop, 1);
+				client.getRoutingTable().addRoute(packet.getSource(), previousHop, Protocol.MAXHOPS - packet.getHops() + 1);
+
+				// The alive beacons of our neighbors measure the quality of their links
+				if (packet.getDestination() == Protocol.BROADCAST && packet.isFlagSet(Packet.MEMBERSHIP)) {
+					client.getNeighborTable().addBeacon(packet.getSource(), packet.getSeq(), previousHop, packet.getHops());
+				}
+
+				// If we are the destination
+				if (packet.getDestination() == Protocol.BROADCAST || packet.getDestination() == Protocol.getSourceAddress()) {
+					// Broadcasts reach us over every path, only handle and forward the first copy
+					if (packet.getDestination() == Protocol.BROADCAST && !floodFilter.addPacket(packet)) {
+						// The copies still tell the broadcast policy how well the broadcast is spreading
+						if (!packet.isFlagSet(Packet.MEMBERSHIP)) {
+							client.getBroadcastSuppressor().addPacket(packet, previousHop);
+						}
+
+						return false;
+					}
+
+					// Forward first, forwarding only changes the hop count, next hop and checksum, which the decoder doesn't read
+					if (!packet.isFlagSet(Packet.PARITY)) {
+						// Broadcasts, group addressed packets included, are only forwarded if the broadcast policy thinks it helps, beacons are only meant for our neighbors
+						if (packet.getDestination() == Protocol.BROADCAST && !packet.isFlagSet(Packet.MEMBERSHIP)) {
+							forwardBroadcast(packet, previousHop);
 						}
 					}
+
+					// The packet is decrypted and handled by the decoder of its source, which releases it
+					return decode(packet);
+
+				// The packet was not meant for us
 				} else {
-					System.err.println("Wrong checksum.");
+					// A request of another member for lost packets we are missing too saves us our own
+					NackReceiveBuffer nackBuffer = getNackReceiveBuffer(packet.getDestination());
+
+					if (packet.isFlagSet(Packet.ACK) && packet.isFlagSet(Packet.NACK) && nackBuffer != null) {
+						nackBuffer.suppress(packet.getAck(), packet.getPayloadBuffer());
+					}
+
+					// Only the next hop of a routed packet forwards it, packets without a route are flooded
+					boolean onPath = packet.getNextHop() == Protocol.BROADCAST || packet.getNextHop() == Protocol.getSourceAddress();
+
+					// If we haven't forwarded this packet yet
+					if (onPath && floodFilter.addPacket(packet)) {
+						// Forward the packet
+						client.forwardPacket(packet, previousHop);
+					}
 				}
-			} catch (IOException e) {
-				// Ignore the exception if it was expected
-				if (!socket.isClosed()) {
-					e.printStackTrace();
-					client.notifyGUI(Protocol.NOTIFY + " Connection lost.");
+			}
+		} else {
+			System.err.println("Wrong checksum.");
+		}
+
+		return false;
+	}
+
+	/**
+	 * Hand a packet addressed to us to the decode stage. The decoder of its source decrypts and handles the packet,
+	 * so the packets of a source stay in order while the packets of different sources are handled in parallel.
+	 * @param packet The pooled packet, the decoder releases it once it is handled
+	 * @return true if the decoder took the packet, false if its queue was full and the packet can be released right away
+	 */
+	private boolean decode(Packet packet) {
+		// A packet that doesn't fit in the queue of its decoder is dropped like a lost packet, the source retransmits it
+		return decoders.execute(packet.getSource(), () -> {
+			try {
+				PeerSession session = peers.get(packet.getSource());
+
+				// Parity packets may rebuild a lost packet, other data packets are kept in case one of their group gets lost
+				if (packet.isFlagSet(Packet.PARITY)) {
+					if (session != null) {
+						receiveParity(session, packet);
+					}
+				} else {
+					if (session != null && packet.getDestination() == Protocol.getSourceAddress() && !packet.isFlagSet(Packet.ACK) && !packet.isFlagSet(Packet.MEMBERSHIP)) {
+						addParityPacket(session, packet);
+					}
+
+					receive(packet);
 				}
+			} finally {
+				packetPool.release(packet);
+			}
+		});
+	}
+
+	/**
+	 * Notice lost repairable packets at the end of the stream of a user, its membership messages tell which repairable packet comes next
+	 * @param packet The membership packet
+	 */
+	private void setNackNext(Packet packet) {
+		NackReceiveBuffer nackBuffer = getNackReceiveBuffer(packet.getSource());
+
+		if (packet.isFlagSet(Packet.NACK) && nackBuffer != null) {
+			nackBuffer.setNext(packet.getAck());
+			requestMissing(packet.getSource(), Protocol.NACK_DELAY);
+		}
+	}
+
+	/**
+	 * Let the broadcast policy decide whether to forward a broadcast, after listening for the copies of our neighbors for a while
+	 * @param packet The first copy of the broadcast
+	 * @param previousHop The neighbor that sent us the copy
+	 */
+	private void forwardBroadcast(Packet packet, int previousHop) {
+		BroadcastSuppressor.Key key = BroadcastSuppressor.getKey(packet);
+		long delay = client.getBroadcastSuppressor().addPacket(packet, previousHop);
+
+		if (delay == 0) {
+			decideBroadcast(key, previousHop);
+		} else if (delay > 0) {
+			client.schedule(() -> decideBroadcast(key, previousHop), System.currentTimeMillis() + delay);
+		}
+	}
+
+	/**
+	 * Forward a broadcast if the broadcast policy decides to
+	 * @param key The key of the broadcast
+	 * @param previousHop The neighbor that sent us the first copy
+	 */
+	private void decideBroadcast(BroadcastSuppressor.Key key, int previousHop) {
+		Packet packet = client.getBroadcastSuppressor().decide(key);
+
+		if (packet != null) {
+			client.forwardPacket(packet, previousHop);
+		}
+	}
+
+	/**
+	 * Handle a packet the event loop received. It is copied once into a pooled packet, so the receive buffer can be reused,
+	 * and that packet is handed on to the decoder without copying it again.
+	 * @param data The received data
+	 * @param sender The address of the neighbor that sent the packet
+	 */
+	public void receive(ByteBuffer data, InetAddress sender) {
+		if (!connected) {
+			return;
+		}
+
+		Packet packet = packetPool.acquire();
+		boolean decoding = false;
+
+		try {
+			int received = Math.min(data.remaining(), packet.getData().length);
+			data.get(packet.getData(), 0, received);
+
+			decoding = handlePacket(packet, received, sender);
+		} finally {
+			// Recycle the packet buffer, unless its decoder does
+			if (!decoding) {
+				packetPool.release(packet);
 			}
 		}
 	}
@@ -1,64 +1,83 @@
 package client;
 
 import dataobjects.ChatMessage;
+import dataobjects.MessageCodec;
 import dataobjects.Packet;
 import encryption.Encryption;
+import utils.GroupSendBuffer;
+import utils.NackSendBuffer;
+import utils.ParityEncoder;
+import utils.PeerSession;
+import utils.PeerTable;
 import utils.Protocol;
 import utils.SendBuffer;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.net.DatagramPacket;
-import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Send buffer class, handles sending packets
+ * Send buffer class, handles sending packets. <br>
+ * Messages are queued as tasks and sent from the event loop, callers get a future that completes once the destination acknowledged the message.
  *
  * @author Frank
  */
-public class ClientSender extends Thread {
+public class ClientSender {
 
 	private final int WINDOW_SIZE;
 	
-	private MulticastSocket socket;
+	private EventLoop eventLoop;
 	private Client client;
 
-	private Map<Integer, SendBuffer> openConnections;
+	private PeerTable peers;
+	private GroupSendBuffer groupBuffer;
+	private NackSendBuffer nackBuffer;
 	
-	private boolean connected = false;
-	private InetAddress group;
-	private int port;
+	private volatile boolean connected = false;
+
+	private int messageId;
+	private int aliveSeq;
+	private AtomicInteger probeSeq;
+	private AtomicInteger ackTransmission;
 
 	/**
 	 * Constructor
 	 * @param windowSize The maximum window size
-	 * @param socket The multicast socket
-	 * @param group The multicast group
-	 * @param port The port number
-	 */
-	public ClientSender(int windowSize, MulticastSocket socket, InetAddress group, int port, Client client) {
-		this.socket = socket;
-		this.group = group;
-		this.port = port;
+	 * @param eventLoop The event loop of the network layer
+	 * @param client The client object
+	 */
+	public ClientSender(int windowSize, EventLoop eventLoop, Client client) {
+		this.eventLoop = eventLoop;
 		this.client = client;
 		WINDOW_SIZE = windowSize;
 		connected = true;
-		openConnections = new HashMap<>();
+		peers = client.getPeerTable();
+		groupBuffer = new GroupSendBuffer(WINDOW_SIZE, Protocol.SEND_QUEUE_SIZE);
+		nackBuffer = new NackSendBuffer(Protocol.NACK_BUFFER_SIZE, Protocol.NACK_RETENTION);
+		probeSeq = new AtomicInteger();
+		ackTransmission = new AtomicInteger();
 	}
 	
 	/**
-	 * Disconnect
+	 * Disconnect and fail all pending deliveries
 	 */
 	public void disconnect() {
 		connected = false;
+
+		for (PeerSession session : peers.getSessions()) {
+			SendBuffer sendBuffer = session.getSendBuffer();
+
+			if (sendBuffer != null) {
+				sendBuffer.close();
+			}
+		}
+
+		groupBuffer.close();
+		nackBuffer.close();
 	}
 
 	/**
@@ -66,9 +85,7 @@ public class ClientSender extends Thread {
 	 * @param destination The destination of the connection
 	 */
 	public void openConnection(int destination) {
-		if (!openConnections.containsKey(destination)) {
-			openConnections.put(destination, new SendBuffer(WINDOW_SIZE));
-		}
+		peers.getOrCreate(destination).openSend(WINDOW_SIZE);
 	}
 
 	/**
@@ -76,201 +93,605 @@ public class ClientSender extends Thread {
 	 * @param destination The destination of the connection
 	 */
 	public void closeConnection(int destination) {
-		// Check if the connection exists
-		if (openConnections.containsKey(destination)) {
-			openConnections.remove(destination);
+		PeerSession session = peers.get(destination);
+		SendBuffer sendBuffer = session != null ? session.closeSend() : null;
+		groupBuffer.removeMember(destination);
+
+		// Fail the deliveries that were still pending
+		if (sendBuffer != null) {
+			sendBuffer.close();
 		}
 	}
 
 	/**
 	 * Acknowledge the given acknowledgement number
 	 * @param ack The acknowledgement number to acknowledge
+	 * @param sack The selective acknowledgement bitmap
 	 * @param source  The source
 	 */
-	public void acknowledge(int source, int ack) {
+	public void acknowledge(int source, int ack, ByteBuffer sack) {
+		PeerSession session = peers.get(source);
+		SendBuffer sendBuffer = session != null ? session.getSendBuffer() : null;
+
 		// If the connection is still open
-		if (openConnections.containsKey(source)) {
-			// Acknowledge the packet
-			openConnections.get(source).ackPacket(ack);
+		if (sendBuffer != null) {
+			// Acknowledge the packets, this may open the window for queued packets
+			sendBuffer.ackPacket(ack, sack);
+			eventLoop.execute(() -> flush(session, sendBuffer));
 		}
 	}
 
+	/**
+	 * Acknowledge group addressed packets for a member
+	 * @param source The address of the member
+	 * @param ack The acknowledgement number
+	 * @param sack The selective acknowledgement bitmap
+	 */
+	public void acknowledgeGroup(int source, int ack, ByteBuffer sack) {
+		// Acknowledge the packets, this may open the window for queued packets
+		groupBuffer.ackPacket(source, ack, sack);
+		eventLoop.execute(this::flushGroup);
+	}
+
 	/**
 	 * Send an acknowledgement to the given destination
 	 * @param destination The destination address
 	 * @param ack The acknowledgement number
+	 * @param sack The selective acknowledgement bitmap, sent as the payload
+	 * @param groupAddressed Whether or not the acknowledgement is for the group addressed packets of the destination
 	 */
-	public void sendAck(int destination, int ack) {
-		try {
-			Packet packet = new Packet(Packet.HEADER_SIZE);
-			packet.setSource(Protocol.getSourceAddress());
-			packet.setDestination(destination);
-			packet.setAck(ack);
-			packet.setHops(Protocol.MAXHOPS);
-			packet.setFlags(true);
-			packet.setLength();
-			packet.setChecksum();
+	public void sendAck(int destination, int ack, byte[] sack, boolean groupAddressed) {
+		Packet packet = new Packet(Packet.HEADER_SIZE + sack.length);
+		packet.setSource(Protocol.getSourceAddress());
+		packet.setDestination(destination);
+		packet.setAck(ack);
+		packet.setHops(Protocol.MAXHOPS);
+		packet.setFlags(true);
+		packet.setFlag(Packet.GROUP, groupAddressed);
+		packet.setPayload(sack);
+		packet.setLength();
 
-			socket.send(new DatagramPacket(packet.getData(), packet.getLength(), group, port));
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		// Acknowledgements have no sequence number, so the same acknowledgement sent again must not be taken for a duplicate
+		packet.setTransmission(ackTransmission.incrementAndGet());
+
+		send(route(packet));
 	}
 
 	/**
 	 * Send a ChatMessage object to the given destination
 	 * @param message The ChatMessage object to send
 	 * @param destination The destination address
+	 * @return Future that completes once the destination acknowledged the message, or fails if it could not be delivered
 	 */
-	public void sendChatMessage(ChatMessage message, int destination) {
-		if (connected) {
-			try {
-				// Check if a connection to the destination is open
-				if (openConnections.containsKey(destination)) {
-					SendBuffer sendBuffer = openConnections.get(destination);
-
-					// Open ByteArray and Object output streams
-					ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-					ObjectOutputStream objectStream = new ObjectOutputStream(new BufferedOutputStream(byteStream));
-
-					// Write the ChatMessage object to the object output stream
-					objectStream.writeObject(message);
-					objectStream.flush();
-
-					// Put the resulting byte array in a packet and set the appropriate flags
-					byte[] buffer = Encryption.encrypt(byteStream.toByteArray(), client.getSymmetricKey(destination));
-					Packet packet = new Packet(buffer.length + Packet.HEADER_SIZE);
-					packet.setSource(Protocol.getSourceAddress());
-					packet.setDestination(destination);
-					packet.setHops(Protocol.MAXHOPS);
-					packet.setSeq(sendBuffer.getSeq());
-					packet.setFlags(false, true, true, client.isExchanged(destination));
-					packet.setPayload(buffer);
-					packet.setLength();
-					packet.setChecksum();
-
-					// Close the output streams
-					byteStream.close();
-					objectStream.close();
-
-					// If we can send a packet, send it and add it to the buffer
-					if (sendBuffer.canSend()) {
-						socket.send(new DatagramPacket(packet.getData(), packet.getLength(), group, port));
-						sendBuffer.addPacket(packet);
-					} else {
-						System.err.println("Send buffer full.");
-					}
-				} else {
-					System.err.println("Trying to send to an unopened connection");
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
+	public CompletableFuture<Void> sendChatMessage(ChatMessage message, int destination) {
+		CompletableFuture<Void> delivery = new CompletableFuture<>();
+
+		submit(delivery, () -> {
+			// Check if a connection to the destination is open
+			PeerSession session = peers.get(destination);
+
+			if (session != null && session.getSendBuffer() != null) {
+				// Encode and encrypt the ChatMessage object and send it
+				String key = session.getSymmetricKey();
+				sendPayload(Encryption.encrypt(MessageCodec.encode(message), key), session, key != null, true, delivery);
+			} else {
+				fail(delivery, "Trying to send to an unopened connection.");
 			}
+		});
+
+		return delivery;
+	}
+
+	/**
+	 * Send a ChatMessage object to a group of members with a single transmission. <br>
+	 * The message is encrypted once with our group key, which the members received with Protocol.GROUP_KEY.
+	 * @param message The ChatMessage object to send
+	 * @param members The addresses of the members
+	 * @return Map with a future for every member that completes once the member acknowledged the message
+	 */
+	public Map<Integer, CompletableFuture<Void>> sendGroupChatMessage(ChatMessage message, Set<Integer> members) {
+		Map<Integer, CompletableFuture<Void>> deliveries = new HashMap<>();
+
+		for (int address : members) {
+			deliveries.put(address, new CompletableFuture<>());
+		}
+
+		if (!connected) {
+			deliveries.values().forEach(delivery -> delivery.completeExceptionally(new IOException("Not connected.")));
+		} else if (!deliveries.isEmpty()) {
+			eventLoop.execute(() -> {
+				// Encode and encrypt the ChatMessage object once for all members
+				Packet[] packets = createPackets(Encryption.encrypt(MessageCodec.encode(message), client.getGroupKey()), Protocol.BROADCAST, true, false);
+
+				if (packets == null || !groupBuffer.offer(deliveries, packets)) {
+					deliveries.values().forEach(delivery -> fail(delivery, packets == null ? "Message too large." : "Send queue full."));
+					return;
+				}
+
+				flushGroup();
+			});
 		}
+
+		return deliveries;
 	}
 
 	/**
-	 * Forward the given packet
-	 * @param datagramPacket The packet to forward
+	 * Send a ChatMessage object to a group of members with a single transmission, lost packets are repaired when members request them (NACK). <br>
+	 * Members don't acknowledge the message, so the futures complete once its packets aged out of the repair buffer after Protocol.NACK_RETENTION,
+	 * and fail if members were still requesting them then.
+	 * @param message The ChatMessage object to send
+	 * @param members The addresses of the members
+	 * @return Map with the same future for every member, it completes once no member can request the message anymore
 	 */
-	public void forwardPacket(DatagramPacket datagramPacket) {
-		try {
-			Packet packet = new Packet(datagramPacket);
+	public Map<Integer, CompletableFuture<Void>> sendNackChatMessage(ChatMessage message, Set<Integer> members) {
+		Map<Integer, CompletableFuture<Void>> deliveries = new HashMap<>();
+		CompletableFuture<Void> delivery = new CompletableFuture<>();
+
+		for (int address : members) {
+			deliveries.put(address, delivery);
+		}
+
+		submit(delivery, () -> {
+			// Encode and encrypt the ChatMessage object once for all members
+			Packet[] packets = createPackets(Encryption.encrypt(MessageCodec.encode(message), client.getGroupKey()), Protocol.BROADCAST, true, false);
 
-			// Decrease the maximum amount of hops
-			packet.decreaseHops();
+			if (packets == null) {
+				fail(delivery, "Message too large.");
+				return;
+			}
+
+			// Keep the packets for repairs and send them right away, there is no window to wait for
+			for (Packet packet : packets) {
+				packet.setFlag(Packet.NACK, true);
+			}
+
+			nackBuffer.addPackets(delivery, packets);
 
-			// Only forward if the amount of hops is higher than zero
-			if (packet.getHops() > 0) {
+			for (Packet packet : packets) {
 				packet.setChecksum();
-				socket.send(new DatagramPacket(packet.getData(), packet.getLength(), group, port));
+				send(packet);
+			}
+
+			// The delivery completes once the packets aged out of the repair buffer
+			eventLoop.schedule(() -> nackBuffer.expire(System.currentTimeMillis()), System.currentTimeMillis() + Protocol.NACK_RETENTION + 1);
+		});
+
+		return deliveries;
+	}
+
+	/**
+	 * Repair lost packets a member requested, packets are sent to the whole group since other members likely lost them too
+	 * @param first The sequence number of bit 0 of the request
+	 * @param missing Bitmap of the requested packets, bit n is set if packet first + n is missing
+	 */
+	public void repair(int first, ByteBuffer missing) {
+		long now = System.currentTimeMillis();
+
+		for (int n = 0; n < missing.remaining() * Byte.SIZE; n++) {
+			if ((missing.get(missing.position() + n / Byte.SIZE) & (1 << (n % Byte.SIZE))) != 0) {
+				resend(nackBuffer.getRepair(first + n, now));
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
 		}
 	}
 
 	/**
-	 * Send a message to the given destination
-	 * @param message The message to send
-	 * @param destination The destination address
+	 * Request lost group addressed packets from their source
+	 * @param source The source of the packets
+	 * @param first The sequence number of the first missing packet
+	 * @param missing Bitmap of the missing packets, sent as the payload
+	 */
+	public void sendNack(int source, int first, byte[] missing) {
+		Packet packet = new Packet(Packet.HEADER_SIZE + missing.length);
+		packet.setSource(Protocol.getSourceAddress());
+		packet.setDestination(source);
+		packet.setAck(first);
+		packet.setHops(Protocol.MAXHOPS);
+		packet.setFlags(true);
+		packet.setFlag(Packet.NACK, true);
+		packet.setPayload(missing);
+		packet.setLength();
+		packet.setTransmission(ackTransmission.incrementAndGet());
+		route(packet);
+
+		send(packet);
+	}
+
+	/**
+	 * Queue a send task for the event loop
+	 * @param delivery The future of the task, failed right away if we are not connected
+	 * @param task The task
 	 */
-	public void sendMessage(String message, int destination) {
+	private void submit(CompletableFuture<Void> delivery, Runnable task) {
 		if (connected) {
-			try {
-				// Check if a connection to the destination is open
-				if (openConnections.containsKey(destination)) {
-					SendBuffer sendBuffer = openConnections.get(destination);
-
-					// Build the packet
-					byte[] buffer = Encryption.encrypt(message.getBytes(), client.getSymmetricKey(destination));
-					Packet packet = new Packet(buffer.length + Packet.HEADER_SIZE);
-					packet.setSource(Protocol.getSourceAddress());
-					packet.setDestination(destination);
-					packet.setHops(Protocol.MAXHOPS);
-					packet.setSeq(sendBuffer.getSeq());
-					packet.setFlags(false, false, true, client.isExchanged(destination));
-					packet.setPayload(buffer);
-					packet.setLength();
-					packet.setChecksum();
-
-					// If we can send a packet, send it and add it to the buffer
-					if (sendBuffer.canSend()) {
-						socket.send(new DatagramPacket(packet.getData(), packet.getLength(), group, port));
-						sendBuffer.addPacket(packet);
-					} else {
-						System.err.println("Send buffer full.");
-					}
-				} else {
-					System.err.println("Trying to send to an unopened connection.");
-				}
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+			eventLoop.execute(task);
+		} else {
+			delivery.completeExceptionally(new IOException("Not connected."));
 		}
 	}
 
 	/**
-	 * Send a message to the given destination
-	 * @param message The message to send
+	 * Fail a delivery
+	 * @param delivery The future of the delivery
+	 * @param reason The reason
+	 */
+	private static void fail(CompletableFuture<Void> delivery, String reason) {
+		System.err.println(reason);
+		delivery.completeExceptionally(new IOException(reason));
+	}
+
+	/**
+	 * Queue an encrypted payload for the given destination and send as much as the window allows. <br>
+	 * Payloads that do not fit in a single packet are split into fragments, which are only queued if the queue has room for all of them.
+	 * @param payload The encrypted payload
+	 * @param session The session with the destination
+	 * @param exchanged Whether or not the payload is encrypted with the key of the key exchange
+	 * @param chatMessage Whether or not the payload is a ChatMessage object
+	 * @param delivery Future that completes once all packets have been acknowledged
+	 */
+	private void sendPayload(byte[] payload, PeerSession session, boolean exchanged, boolean chatMessage, CompletableFuture<Void> delivery) {
+		SendBuffer sendBuffer = session.getSendBuffer();
+
+		// The connection may have been closed by a decoder in the meantime
+		if (sendBuffer == null) {
+			fail(delivery, "Trying to send to an unopened connection.");
+			return;
+		}
+
+		Packet[] packets = createPackets(payload, session.getAddress(), chatMessage, exchanged);
+
+		if (packets == null) {
+			fail(delivery, "Message too large.");
+			return;
+		}
+
+		// Queue the packets and send as many as the congestion window allows
+		if (sendBuffer.offer(delivery, packets)) {
+			flush(session, sendBuffer);
+		} else {
+			fail(delivery, "Send queue full.");
+		}
+	}
+
+	/**
+	 * Build the packets for an encrypted payload, payloads that do not fit in a single packet are split into fragments. <br>
+	 * Packets to the broadcast address are group addressed.
+	 * @param payload The encrypted payload
 	 * @param destination The destination address
+	 * @param chatMessage Whether or not the payload is a ChatMessage object
+	 * @param exchanged Whether or not the payload is encrypted with the key of a key exchange
+	 * @return The packets without sequence numbers, or null if the payload needs too many fragments
 	 */
-	public void sendAliveBroadcast(String message, int destination) {
-		if (connected) {
-			try {
-				byte[] sendBuffer = Encryption.encrypt(message.getBytes(), null);
-				Packet packet = new Packet(sendBuffer.length + Packet.HEADER_SIZE);
+	private Packet[] createPackets(byte[] payload, int destination, boolean chatMessage, boolean exchanged) {
+		Packet[] packets;
+
+		// Send the payload in a single packet if it fits
+		if (payload.length <= Packet.MAX_PAYLOAD_SIZE) {
+			Packet packet = new Packet(payload.length + Packet.HEADER_SIZE);
+			packet.setSource(Protocol.getSourceAddress());
+			packet.setDestination(destination);
+			packet.setHops(Protocol.MAXHOPS);
+			packet.setFlags(false, chatMessage, true, exchanged);
+			packet.setFlag(Packet.GROUP, destination == Protocol.BROADCAST);
+			packet.setPayload(payload);
+			packet.setLength();
+
+			packets = new Packet[] {packet};
+		} else {
+			int count = (payload.length + Packet.FRAGMENT_SIZE - 1) / Packet.FRAGMENT_SIZE;
+
+			if (count > Packet.MAX_FRAGMENTS) {
+				return null;
+			}
+
+			short id = (short) messageId++;
+			packets = new Packet[count];
+
+			// Build the fragments, each one takes a sequence number in the send buffer once it leaves the queue
+			for (int index = 0; index < count; index++) {
+				int offset = index * Packet.FRAGMENT_SIZE;
+				int length = Math.min(Packet.FRAGMENT_SIZE, payload.length - offset);
+
+				Packet packet = new Packet(Packet.HEADER_SIZE + Packet.FRAGMENT_HEADER_SIZE + length);
 				packet.setSource(Protocol.getSourceAddress());
 				packet.setDestination(destination);
 				packet.setHops(Protocol.MAXHOPS);
-				packet.setFlags(false, false, true);
-				packet.setPayload(sendBuffer);
+				packet.setFlags(false, chatMessage, true, exchanged, true);
+				packet.setFlag(Packet.GROUP, destination == Protocol.BROADCAST);
+				packet.setFragment(id, index, count);
+				packet.setFragmentPayload(payload, offset, length);
 				packet.setLength();
-				packet.setChecksum();
 
-				socket.send(new DatagramPacket(packet.getData(), packet.getLength(), group, port));
-			} catch (IOException e) {
-				e.printStackTrace();
+				packets[index] = packet;
+			}
+		}
+
+		return packets;
+	}
+
+	/**
+	 * Send queued group addressed packets until the queue is empty or the window is full
+	 */
+	private void flushGroup() {
+		Packet packet;
+
+		while ((packet = groupBuffer.poll()) != null) {
+			packet.setChecksum();
+			send(packet);
+
+			scheduleGroup(packet.getSeq(), groupBuffer.getDeadline(packet.getSeq(), System.currentTimeMillis()));
+		}
+	}
+
+	/**
+	 * Retransmit a group addressed packet if its retransmission timeout expired, and schedule the next check
+	 * @param seq The sequence number of the packet
+	 */
+	private void retransmitGroup(int seq) {
+		long now = System.currentTimeMillis();
+
+		resend(groupBuffer.retransmit(seq, now));
+
+		long deadline = groupBuffer.getDeadline(seq, now);
+		scheduleGroup(seq, deadline);
+
+		// If the members that did not acknowledge the packet were given up on, the window may have opened
+		if (deadline < 0) {
+			eventLoop.execute(this::flushGroup);
+		}
+	}
+
+	/**
+	 * Schedule a retransmission check for a group addressed packet
+	 * @param seq The sequence number of the packet
+	 * @param deadline The time of the check in milliseconds, nothing is scheduled if it is negative
+	 */
+	private void scheduleGroup(int seq, long deadline) {
+		if (deadline >= 0) {
+			eventLoop.schedule(() -> retransmitGroup(seq), deadline);
+		}
+	}
+
+	/**
+	 * Send queued packets until the queue is empty or the window is full
+	 * @param session The session with the destination
+	 * @param sendBuffer The send buffer of the destination
+	 */
+	private void flush(PeerSession session, SendBuffer sendBuffer) {
+		int destination = session.getAddress();
+		ParityEncoder parityEncoder = session.getParityEncoder();
+		Packet packet;
+		Packet last = null;
+
+		while ((packet = sendBuffer.poll()) != null) {
+			// Let the packet carry a pending acknowledgement for the destination, saving a separate ack packet
+			client.piggybackAck(destination, packet);
+			route(packet);
+			send(packet);
+
+			schedule(destination, sendBuffer, packet.getSeq(), sendBuffer.getDeadline(packet.getSeq(), System.currentTimeMillis()));
+
+			// Send a parity packet after every group of data packets
+			if (parityEncoder != null) {
+				send(route(parityEncoder.addPacket(packet)));
+				last = packet;
+			}
+		}
+
+		// Don't leave the last packets unprotected if no more data is waiting to be sent
+		if (last != null && sendBuffer.getQueueSize() == 0) {
+			send(route(parityEncoder.flush(last)));
+		}
+	}
+
+	/**
+	 * Address a unicast packet to the next hop of the route to its destination, so only the nodes on the path forward it. <br>
+	 * The checksum is updated.
+	 * @param packet The packet to route, may be null
+	 * @return The packet
+	 */
+	private Packet route(Packet packet) {
+		if (packet != null) {
+			packet.setNextHop(client.getRoutingTable().getNextHop(packet.getDestination()));
+			packet.setChecksum();
+		}
+
+		return packet;
+	}
+
+	/**
+	 * Send a packet to the multicast group
+	 * @param packet The packet to send, nothing is sent if it is null
+	 */
+	private void send(Packet packet) {
+		if (packet != null) {
+			eventLoop.send(packet.getData(), packet.getLength());
+		}
+	}
+
+	/**
+	 * Send a packet again, it is marked as another transmission so the nodes on the way don't take it for a duplicate
+	 * @param packet The packet to send, nothing is sent if it is null
+	 */
+	private void resend(Packet packet) {
+		if (packet != null) {
+			packet.increaseTransmission();
+			packet.setChecksum();
+			send(packet);
+		}
+	}
+
+	/**
+	 * Set the amount of data packets per parity packet sent to a destination, as requested by the destination
+	 * @param destination The destination address
+	 * @param groupSize The group size, 0 disables forward error correction
+	 */
+	public void setParityGroupSize(int destination, int groupSize) {
+		PeerSession session = peers.get(destination);
+		ParityEncoder parityEncoder = session != null ? session.getParityEncoder() : null;
+
+		if (parityEncoder != null) {
+			parityEncoder.setGroupSize(groupSize);
+		}
+	}
+
+	/**
+	 * Forward the given packet, the hop count, next hop and checksum are updated in place
+	 * @param packet The packet to forward
+	 * @param previousHop The neighbor we received the packet from
+	 */
+	public void forwardPacket(Packet packet, int previousHop) {
+		// Decrease the maximum amount of hops
+		packet.decreaseHops();
+
+		// Only forward if the amount of hops is higher than zero
+		if (packet.getHops() > 0) {
+			// Pass the packet on along the route, a route back to where it came from is stale so the packet is flooded instead
+			int nextHop = client.getRoutingTable().getNextHop(packet.getDestination());
+			packet.setNextHop(nextHop != previousHop ? nextHop : Protocol.BROADCAST);
+			packet.setChecksum();
+			send(packet);
+		}
+	}
+
+	/**
+	 * Send a message to the given destination
+	 * @param message The message to send
+	 * @param destination The destination address
+	 * @return Future that completes once the destination acknowledged the message, or fails if it could not be delivered
+	 */
+	public CompletableFuture<Void> sendMessage(String message, int destination) {
+		CompletableFuture<Void> delivery = new CompletableFuture<>();
+
+		submit(delivery, () -> {
+			// Check if a connection to the destination is open
+			PeerSession session = peers.get(destination);
+
+			if (session != null && session.getSendBuffer() != null) {
+				// Encrypt the message and send it
+				String key = session.getSymmetricKey();
+				sendPayload(Encryption.encrypt(message.getBytes(), key), session, key != null, false, delivery);
+			} else {
+				fail(delivery, "Trying to send to an unopened connection.");
 			}
+		});
+
+		return delivery;
+	}
+
+	/**
+	 * Send an 'alive' beacon to our neighbors, beacons are numbered one by one so the neighbors can tell how many they missed
+	 * @param message The message to send
+	 */
+	public void sendAliveBroadcast(String message) {
+		sendMembership(message, Protocol.BROADCAST, aliveSeq++);
+	}
+
+	/**
+	 * Send a membership probe, or the answer to one, to the given destination
+	 * @param message The message to send
+	 * @param destination The destination address
+	 */
+	public void sendProbe(String message, int destination) {
+		sendMembership(message, destination, probeSeq.getAndIncrement());
+	}
+
+	/**
+	 * Send a leave message to everyone, it is flooded through the network like any other broadcast
+	 * @param message The message to send
+	 */
+	public void sendLeaveBroadcast(String message) {
+		sendUnsequenced(message, Protocol.BROADCAST, probeSeq.getAndIncrement(), false);
+	}
+
+	/**
+	 * Send a membership message once, without sequencing or acknowledgements
+	 * @param message The message to send
+	 * @param destination The destination address, beacons are sent to the broadcast address
+	 * @param seq The sequence number, only used to tell copies apart
+	 */
+	private void sendMembership(String message, int destination, int seq) {
+		sendUnsequenced(message, destination, seq, true);
+	}
+
+	/**
+	 * Send a message once, without sequencing or acknowledgements
+	 * @param message The message to send
+	 * @param destination The destination address
+	 * @param seq The sequence number, only used to tell copies apart
+	 * @param membership Whether or not it is a membership message, membership broadcasts are not forwarded
+	 */
+	private void sendUnsequenced(String message, int destination, int seq, boolean membership) {
+		if (connected) {
+			byte[] sendBuffer = Encryption.encrypt(message.getBytes(), null);
+			Packet packet = new Packet(sendBuffer.length + Packet.HEADER_SIZE);
+			packet.setSource(Protocol.getSourceAddress());
+			packet.setDestination(destination);
+			packet.setSeq(seq);
+			packet.setHops(Protocol.MAXHOPS);
+			packet.setFlags(false, false, true);
+			packet.setFlag(Packet.MEMBERSHIP, membership);
+
+			// Tell the members which repairable packet comes next, so they notice if they lost the last ones
+			packet.setAck(nackBuffer.getSeq());
+			packet.setFlag(Packet.NACK, true);
+			packet.setPayload(sendBuffer);
+			packet.setLength();
+
+			send(route(packet));
+		}
+	}
+
+	/**
+	 * Resume retransmissions to a destination that was marked as suspect
+	 * @param destination The destination address
+	 */
+	public void resume(int destination) {
+		PeerSession session = peers.get(destination);
+		SendBuffer sendBuffer = session != null ? session.getSendBuffer() : null;
+
+		if (sendBuffer != null) {
+			sendBuffer.resume();
+			eventLoop.execute(() -> flush(session, sendBuffer));
+		}
+	}
+
+	/**
+	 * Retransmit a packet if its retransmission timeout expired, and schedule the next check
+	 * @param destination The destination address
+	 * @param sendBuffer The send buffer containing the packet
+	 * @param seq The sequence number of the packet
+	 */
+	private void retransmit(int destination, SendBuffer sendBuffer, int seq) {
+		// Stop if the connection has been closed in the meantime
+		PeerSession session = peers.get(destination);
+
+		if (session == null || session.getSendBuffer() != sendBuffer) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		Packet packet = sendBuffer.retransmit(seq, now);
+
+		if (packet != null) {
+			// The route may be broken, flood the retransmission and the next packets until a new route is learned
+			client.getRoutingTable().removeRoute(destination);
+			packet.setNextHop(Protocol.BROADCAST);
+			resend(packet);
 		}
+
+		schedule(destination, sendBuffer, seq, sendBuffer.getDeadline(seq, now));
 	}
 
-	@Override
-	public void run() {
-		// Create a retransmission scheduler
-		ScheduledExecutorService retransmitScheduler = Executors.newScheduledThreadPool(1);
-		retransmitScheduler.scheduleAtFixedRate(() -> {
-            // Go through all open connections
-            for (SendBuffer buffer : openConnections.values()) {
-                // Retransmit each unacked packet left in the buffer
-                for (Packet packet : buffer.getUnackedPackets().values()) {
-                    try {
-                        socket.send(new DatagramPacket(packet.getData(), packet.getLength(), group, port));
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-        }, Protocol.TIMEOUT, Protocol.TIMEOUT, TimeUnit.MILLISECONDS);
+	/**
+	 * Schedule a retransmission check for a packet
+	 * @param destination The destination address
+	 * @param sendBuffer The send buffer containing the packet
+	 * @param seq The sequence number of the packet
+	 * @param deadline The time of the check in milliseconds, nothing is scheduled if it is negative
+	 */
+	private void schedule(int destination, SendBuffer sendBuffer, int seq, long deadline) {
+		if (deadline >= 0) {
+			eventLoop.schedule(() -> retransmit(destination, sendBuffer, seq), deadline);
+		}
 	}
 }
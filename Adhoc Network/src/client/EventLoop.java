@@ -0,0 +1,276 @@
+package client;
+
+import dataobjects.Packet;
+import utils.Protocol;
+import utils.TimerWheel;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event loop of the network layer, a single thread handles the reads and writes of a non-blocking multicast channel, the timers and the queued tasks. <br>
+ * Packets are received into a direct buffer and handed to the listener. Packets sent from the loop itself are written right away,
+ * packets sent from other threads or while the socket buffer is full are queued and written by the loop. <br>
+ * Multicast loopback is disabled, so our own transmissions never come back to us.
+ *
+ * @author Frank
+ */
+public class EventLoop {
+
+	private DatagramChannel channel;
+	private Selector selector;
+	private SelectionKey selectionKey;
+	private InetSocketAddress target;
+
+	private ByteBuffer receiveBuffer;
+	private ByteBuffer sendBuffer;
+
+	private Queue<Runnable> tasks;
+	private Queue<ByteBuffer> writes;
+	private TimerWheel timers;
+
+	private ClientListener listener;
+	private volatile Thread thread;
+	private volatile boolean running;
+
+	/**
+	 * Constructor, opens the channel and joins the multicast group
+	 * @param group The multicast group
+	 * @param port The port number
+	 * @throws IOException If the channel could not be opened or the group could not be joined
+	 */
+	public EventLoop(InetAddress group, int port) throws IOException {
+		NetworkInterface networkInterface = getNetworkInterface();
+
+		channel = DatagramChannel.open(StandardProtocolFamily.INET);
+		channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		channel.bind(new InetSocketAddress(port));
+		channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+		channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, false);
+		channel.join(group, networkInterface);
+		channel.configureBlocking(false);
+
+		selector = Selector.open();
+		selectionKey = channel.register(selector, SelectionKey.OP_READ);
+		target = new InetSocketAddress(group, port);
+
+		receiveBuffer = ByteBuffer.allocateDirect(Packet.SIZE);
+		sendBuffer = ByteBuffer.allocateDirect(Packet.SIZE);
+
+		tasks = new ConcurrentLinkedQueue<>();
+		writes = new ConcurrentLinkedQueue<>();
+		timers = new TimerWheel(Protocol.RETRANSMIT_TICK, Protocol.TIMER_WHEEL_SIZE);
+
+		running = true;
+	}
+
+	/**
+	 * Set the listener that handles the received packets
+	 * @param listener The listener
+	 */
+	public void setListener(ClientListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Run a task on the loop, after the tasks that were queued before it
+	 * @param task The task to run
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+
+		if (!inLoop()) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Schedule a task on the loop
+	 * @param task The task to run
+	 * @param deadline The time in milliseconds at which the task should run
+	 */
+	public void schedule(Runnable task, long deadline) {
+		timers.schedule(task, deadline);
+	}
+
+	/**
+	 * Send a packet to the multicast group
+	 * @param data The packet data, it may be reused as soon as this returns
+	 * @param length The length of the packet
+	 */
+	public void send(byte[] data, int length) {
+		// The loop writes straight from its own send buffer if nothing is waiting before it
+		if (inLoop() && writes.isEmpty() && write(ByteBuffer.wrap(data, 0, length))) {
+			return;
+		}
+
+		// Else the packet is copied and written by the loop when the channel is ready
+		writes.add(ByteBuffer.wrap(Arrays.copyOf(data, length)));
+
+		if (inLoop()) {
+			selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+		} else {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Stop the loop once the tasks queued so far have run, the pending writes are written before the channel is closed
+	 */
+	public void close() {
+		execute(() -> running = false);
+	}
+
+	/**
+	 * Run the loop on the calling thread until it is closed
+	 */
+	public void run() {
+		thread = Thread.currentThread();
+		long nextTick = System.currentTimeMillis() + Protocol.RETRANSMIT_TICK;
+
+		try {
+			while (running) {
+				// Sleep until a packet arrives, the channel can be written, a task is queued or the next timer tick
+				if (tasks.isEmpty()) {
+					selector.select(Math.max(1, nextTick - System.currentTimeMillis()));
+				} else {
+					selector.selectNow();
+				}
+				selector.selectedKeys().clear();
+
+				if (selectionKey.isValid()) {
+					read();
+					flushWrites();
+				}
+
+				runTasks();
+
+				long now = System.currentTimeMillis();
+
+				// Advance the timers every tick, only the tasks whose deadline passed are touched
+				if (now >= nextTick) {
+					timers.advance(now);
+					nextTick = now + Protocol.RETRANSMIT_TICK;
+				}
+			}
+
+			flushWrites();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			try {
+				selector.close();
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @return Whether or not we are on the loop thread
+	 */
+	private boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Read all packets that have arrived and hand them to the listener
+	 * @throws IOException If the channel could not be read
+	 */
+	private void read() throws IOException {
+		SocketAddress sender;
+
+		while ((sender = channel.receive(receiveBuffer)) != null) {
+			receiveBuffer.flip();
+
+			if (listener != null) {
+				listener.receive(receiveBuffer, ((InetSocketAddress) sender).getAddress());
+			}
+
+			receiveBuffer.clear();
+		}
+	}
+
+	/**
+	 * Write the queued packets until the socket buffer is full, and only wait for the channel to be writable while packets are left
+	 */
+	private void flushWrites() {
+		ByteBuffer packet;
+
+		while ((packet = writes.peek()) != null && write(packet)) {
+			writes.poll();
+		}
+
+		selectionKey.interestOps(writes.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+	}
+
+	/**
+	 * Write a packet through the direct send buffer
+	 * @param packet The packet
+	 * @return true if the packet was written or dropped, false if the socket buffer is full
+	 */
+	private boolean write(ByteBuffer packet) {
+		sendBuffer.clear();
+		sendBuffer.put(packet.duplicate());
+		sendBuffer.flip();
+
+		try {
+			return channel.send(sendBuffer, target) > 0;
+		} catch (IOException e) {
+			// A packet that can't be sent is lost like any other, the retransmissions take care of it
+			e.printStackTrace();
+			return true;
+		}
+	}
+
+	/**
+	 * Run the tasks that were queued, tasks queued while running them wait for the next round
+	 */
+	private void runTasks() {
+		for (int n = tasks.size(); n > 0; n--) {
+			Runnable task = tasks.poll();
+
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				// A failing task must not take the loop down with it
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Find the network interface of our own address, the one the source address of our packets belongs to
+	 * @return The network interface
+	 * @throws IOException If there is no network interface that supports multicast
+	 */
+	private static NetworkInterface getNetworkInterface() throws IOException {
+		NetworkInterface networkInterface = NetworkInterface.getByInetAddress(InetAddress.getLocalHost());
+
+		if (networkInterface != null && networkInterface.supportsMulticast()) {
+			return networkInterface;
+		}
+
+		// Fall back on the first interface that is up and supports multicast
+		Enumeration<NetworkInterface> networkInterfaces = NetworkInterface.getNetworkInterfaces();
+
+		while (networkInterfaces.hasMoreElements()) {
+			networkInterface = networkInterfaces.nextElement();
+
+			if (networkInterface.isUp() && networkInterface.supportsMulticast() && !networkInterface.isLoopback()) {
+				return networkInterface;
+			}
+		}
+
+		throw new IOException("No network interface supports multicast.");
+	}
+}
@@ -0,0 +1,277 @@
+package dataobjects;
+
+import java.awt.*;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Versioned binary codec for ChatMessage and User objects. <br>
+ * Integers are written as varints, strings as length prefixed UTF-8 and colors as a presence byte followed by their ARGB value. <br> <br>
+ * <b>Layout (version 1):</b><br>
+ * version, user, text color, font size, font, style bits, destination, message <br>
+ * <b>User:</b><br>
+ * name, color, text color, address <br>
+ * The last seen timestamp is not sent, receivers set it when the message arrives.
+ *
+ * @author Frank
+ */
+public class MessageCodec {
+
+	public static final int VERSION = 1;
+
+	/* Style bits */
+	private static final int BOLD = 1;
+	private static final int ITALIC = 1 << 1;
+
+	/**
+	 * Encode a ChatMessage object
+	 * @param message The message to encode
+	 * @return The encoded message
+	 */
+	public static byte[] encode(ChatMessage message) {
+		byte[] font = toBytes(message.getFont());
+		byte[] destination = toBytes(message.getDestination());
+		byte[] text = toBytes(message.getMessage());
+		byte[] name = toBytes(message.getUser().getName());
+
+		// Calculate the exact size so the buffer never has to grow
+		int size = 1 + userSize(message.getUser(), name) + colorSize(message.getColor()) + varIntSize(message.getFontSize()) + stringSize(font) + 1 + stringSize(destination) + stringSize(text);
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+
+		buffer.put((byte) VERSION);
+		putUser(buffer, message.getUser(), name);
+		putColor(buffer, message.getColor());
+		putVarInt(buffer, message.getFontSize());
+		putString(buffer, font);
+		buffer.put((byte) ((message.isBold() ? BOLD : 0) | (message.isItalic() ? ITALIC : 0)));
+		putString(buffer, destination);
+		putString(buffer, text);
+
+		return buffer.array();
+	}
+
+	/**
+	 * Decode a ChatMessage object
+	 * @param buffer The buffer to read the message from, starting at its position
+	 * @return The decoded message
+	 * @throws IOException If the data is malformed or has an unknown version
+	 */
+	public static ChatMessage decode(ByteBuffer buffer) throws IOException {
+		try {
+			int version = buffer.get() & 0xFF;
+
+			if (version != VERSION) {
+				throw new IOException("Unknown message version " + version + ".");
+			}
+
+			User user = getUser(buffer);
+			Color color = getColor(buffer);
+			int fontSize = getVarInt(buffer);
+			String font = getString(buffer);
+			int style = buffer.get();
+			String destination = getString(buffer);
+			String message = getString(buffer);
+
+			return new ChatMessage(user, color, fontSize, font, (style & BOLD) != 0, (style & ITALIC) != 0, message, destination);
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("Malformed message.", e);
+		}
+	}
+
+	/**
+	 * Encode a User object
+	 * @param user The user to encode
+	 * @return The encoded user
+	 */
+	public static byte[] encode(User user) {
+		byte[] name = toBytes(user.getName());
+		ByteBuffer buffer = ByteBuffer.allocate(1 + userSize(user, name));
+
+		buffer.put((byte) VERSION);
+		putUser(buffer, user, name);
+
+		return buffer.array();
+	}
+
+	/**
+	 * Decode a User object
+	 * @param buffer The buffer to read the user from, starting at its position
+	 * @return The decoded user
+	 * @throws IOException If the data is malformed or has an unknown version
+	 */
+	public static User decodeUser(ByteBuffer buffer) throws IOException {
+		try {
+			int version = buffer.get() & 0xFF;
+
+			if (version != VERSION) {
+				throw new IOException("Unknown user version " + version + ".");
+			}
+
+			return getUser(buffer);
+		} catch (BufferUnderflowException | IllegalArgumentException e) {
+			throw new IOException("Malformed user.", e);
+		}
+	}
+
+	/**
+	 * Write a user without a version byte
+	 * @param buffer The buffer to write to
+	 * @param user The user to write
+	 * @param name The encoded user name
+	 */
+	private static void putUser(ByteBuffer buffer, User user, byte[] name) {
+		putString(buffer, name);
+		putColor(buffer, user.getColor());
+		putColor(buffer, user.getTextColor());
+		buffer.putInt(user.getAddress());
+	}
+
+	/**
+	 * Read a user without a version byte
+	 * @param buffer The buffer to read from
+	 * @return The user
+	 */
+	private static User getUser(ByteBuffer buffer) {
+		User user = new User(getString(buffer), getColor(buffer));
+		user.setTextColor(getColor(buffer));
+		user.setAddress(buffer.getInt());
+
+		return user;
+	}
+
+	/**
+	 * @param user The user
+	 * @param name The encoded user name
+	 * @return The encoded size of a user without a version byte
+	 */
+	private static int userSize(User user, byte[] name) {
+		return stringSize(name) + colorSize(user.getColor()) + colorSize(user.getTextColor()) + 4;
+	}
+
+	/**
+	 * Write a color as its ARGB value, after a byte telling whether there is a color at all
+	 * @param buffer The buffer to write to
+	 * @param color The color to write, may be null
+	 */
+	private static void putColor(ByteBuffer buffer, Color color) {
+		if (color == null) {
+			buffer.put((byte) 0);
+		} else {
+			buffer.put((byte) 1);
+			buffer.putInt(color.getRGB());
+		}
+	}
+
+	/**
+	 * Read a color from its ARGB value
+	 * @param buffer The buffer to read from
+	 * @return The color, or null if no color was written
+	 */
+	private static Color getColor(ByteBuffer buffer) {
+		return buffer.get() != 0 ? new Color(buffer.getInt(), true) : null;
+	}
+
+	/**
+	 * @param color The color, may be null
+	 * @return The encoded size of the color
+	 */
+	private static int colorSize(Color color) {
+		return color != null ? 1 + 4 : 1;
+	}
+
+	/**
+	 * Write a length prefixed string
+	 * @param buffer The buffer to write to
+	 * @param bytes The UTF-8 bytes of the string
+	 */
+	private static void putString(ByteBuffer buffer, byte[] bytes) {
+		putVarInt(buffer, bytes.length);
+		buffer.put(bytes);
+	}
+
+	/**
+	 * Read a length prefixed string
+	 * @param buffer The buffer to read from
+	 * @return The string
+	 */
+	private static String getString(ByteBuffer buffer) {
+		int length = getVarInt(buffer);
+
+		if (length < 0 || length > buffer.remaining()) {
+			throw new BufferUnderflowException();
+		}
+
+		// Copy the bytes out instead of using the backing array, the buffer may be direct or read-only
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @param string The string to convert, null is treated as an empty string
+	 * @return The UTF-8 bytes of the string
+	 */
+	private static byte[] toBytes(String string) {
+		return string != null ? string.getBytes(StandardCharsets.UTF_8) : new byte[0];
+	}
+
+	/**
+	 * @param bytes The UTF-8 bytes of a string
+	 * @return The encoded size of the string including its length prefix
+	 */
+	private static int stringSize(byte[] bytes) {
+		return varIntSize(bytes.length) + bytes.length;
+	}
+
+	/**
+	 * Write an unsigned varint, 7 bits per byte with the MSB as continuation bit
+	 * @param buffer The buffer to write to
+	 * @param value The value to write
+	 */
+	public static void putVarInt(ByteBuffer buffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+
+		buffer.put((byte) value);
+	}
+
+	/**
+	 * Read an unsigned varint
+	 * @param buffer The buffer to read from
+	 * @return The value
+	 */
+	public static int getVarInt(ByteBuffer buffer) {
+		int value = 0;
+
+		for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+
+		throw new IllegalArgumentException("Varint is too long.");
+	}
+
+	/**
+	 * @param value The value
+	 * @return The amount of bytes needed to write the value as a varint
+	 */
+	public static int varIntSize(int value) {
+		int size = 1;
+
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+
+		return size;
+	}
+}
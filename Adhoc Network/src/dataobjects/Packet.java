@@ -1,6 +1,5 @@
 package dataobjects;
 
-import java.net.DatagramPacket;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 
@@ -12,13 +11,32 @@ import java.util.Arrays;
 public class Packet {
 
 	public static final int SIZE = 1024;
-	public static final int HEADER_SIZE = 26;
+	public static final int HEADER_SIZE = 30;
+
+	/* Forward error correction, parity covers the data packets from the sequence number on, so they leave room for the parity header */
+	public static final int PARITY_OFFSET = 8;
+	public static final int PARITY_HEADER_SIZE = 1;
+	public static final int MAX_DATA_SIZE = SIZE - HEADER_SIZE - PARITY_HEADER_SIZE + PARITY_OFFSET;
+	public static final int MAX_PARITY_SIZE = MAX_DATA_SIZE - PARITY_OFFSET;
+
+	public static final int MAX_PAYLOAD_SIZE = MAX_DATA_SIZE - HEADER_SIZE;
+
+	/* Fragmentation */
+	public static final int FRAGMENT_HEADER_SIZE = 4;
+	public static final int FRAGMENT_SIZE = MAX_PAYLOAD_SIZE - FRAGMENT_HEADER_SIZE;
+	public static final int MAX_FRAGMENTS = 255;
 	
 	/* Flags */
 	public static final int ACK = 1;
 	public static final int CHATMESSAGE = 2;
 	public static final int ENCRYPTION = 3;
 	public static final int KEYEXCHANGED = 4;
+	public static final int FRAGMENT = 5;
+	public static final int PIGGYBACK = 6;
+	public static final int PARITY = 7;
+	public static final int GROUP = 8;
+	public static final int NACK = 9;
+	public static final int MEMBERSHIP = 10;
 	
 	/* Header positions */
 	private final int SRC_POS = 0; // Source
@@ -27,9 +45,21 @@ public class Packet {
 	private final int ACK_POS = 12; // Acknowledgement number
 	private final int FLG_POS = 16; // Flags
 	private final int HOP_POS = 18; // Hop count
+	private final int TRX_POS = 19; // Transmission count, 0 for the first transmission
 	private final int LEN_POS = 20; // Length
 	private final int CSM_POS = 24; // Checksum
-	private final int PLD_POS = 26; // Payload
+	private final int NXT_POS = 26; // Next hop
+	private final int PLD_POS = 30; // Payload
+
+	/* Fragment header positions, only used if the fragment flag is set */
+	private final int FID_POS = 30; // Fragmented message id
+	private final int FIX_POS = 32; // Fragment index
+	private final int FCT_POS = 33; // Fragment count
+	private final int FPL_POS = 34; // Fragment payload
+
+	/* Parity header positions, only used if the parity flag is set */
+	private final int PCT_POS = 30; // Amount of data packets in the group, the first one has the sequence number of the parity packet
+	private final int PPL_POS = 31; // Parity payload
 	
 	private ByteBuffer buffer;
 	
@@ -41,15 +71,6 @@ public class Packet {
 		buffer = ByteBuffer.allocate(size);
 	}
 	
-	/**
-	 * Constructor for reading a received DatagramPacket
-	 * @param packet The datagram packet to convert
-	 */
-	public Packet(DatagramPacket packet) {
-		buffer = ByteBuffer.allocate(Packet.SIZE);
-		buffer.put(packet.getData());
-	}
-	
 	/**
 	 * Set the source address
 	 * @param source The source address
@@ -118,6 +139,12 @@ public class Packet {
 	 * 2. ChatMessage <br>
 	 * 3. Encryption <br>
 	 * 4. KeyExchanged <br>
+	 * 5. Fragment <br>
+	 * 6. Piggyback (the acknowledgement number is valid) <br>
+	 * 7. Parity (forward error correction for a group of data packets) <br>
+	 * 8. Group (sent once to all members of the main chat, with its own sequence numbers) <br>
+	 * 9. NACK (group addressed packets that are repaired on request instead of acknowledged, with ACK set it is a request) <br>
+	 * 10. Membership (beacons and probes, sent once without sequencing, beacons only reach the neighbors) <br>
 	 * 
 	 * @param flg The flags
 	 */
@@ -147,6 +174,23 @@ public class Packet {
 		}
 	}
 	
+	/**
+	 * Set or clear a single flag
+	 * @param n The flag index
+	 * @param set Whether the flag should be set or cleared
+	 */
+	public void setFlag(int n, boolean set) {
+		short flags = getFlags();
+
+		if (set) {
+			flags |= (1 << (n - 1));
+		} else {
+			flags &= ~(1 << (n - 1));
+		}
+
+		buffer.putShort(FLG_POS, flags);
+	}
+
 	/**
 	 * Check if the nth flag is set <br> <br>
 	 * <b>Flags:</b><br>
@@ -154,6 +198,12 @@ public class Packet {
 	 * 2. ChatMessage <br>
 	 * 3. Encryption <br>
 	 * 4. KeyExchanged <br>
+	 * 5. Fragment <br>
+	 * 6. Piggyback (the acknowledgement number is valid) <br>
+	 * 7. Parity <br>
+	 * 8. Group <br>
+	 * 9. NACK <br>
+	 * 10. Membership <br>
 	 *
 	 * @param n The flag index
 	 * @return true is the flag is set, else false
@@ -177,21 +227,59 @@ public class Packet {
 	 * @param hops The hop count
 	 */
 	public void setHops(short hops) {
-		buffer.putShort(HOP_POS, hops);
+		buffer.put(HOP_POS, (byte) hops);
 	}
 	
 	/**
 	 * @return The hop count
 	 */
 	public int getHops() {
-		return buffer.getShort(HOP_POS);
+		return buffer.get(HOP_POS);
 	}
 	
 	/**
 	 * Decrease the hop count by one
 	 */
 	public void decreaseHops() {
-		buffer.putShort(HOP_POS, (short) (buffer.getShort(HOP_POS) - 1));
+		buffer.put(HOP_POS, (byte) (buffer.get(HOP_POS) - 1));
+	}
+
+	/**
+	 * Count another transmission of the packet, so nodes can tell a retransmission from a copy of the same transmission. <br>
+	 * The count wraps around after 255 retransmissions.
+	 */
+	public void increaseTransmission() {
+		buffer.put(TRX_POS, (byte) (buffer.get(TRX_POS) + 1));
+	}
+
+	/**
+	 * Set the transmission count
+	 * @param transmission The transmission count, only the lowest 8 bits are kept
+	 */
+	public void setTransmission(int transmission) {
+		buffer.put(TRX_POS, (byte) transmission);
+	}
+
+	/**
+	 * @return The transmission count, 0 for the first transmission
+	 */
+	public int getTransmission() {
+		return buffer.get(TRX_POS) & 0xFF;
+	}
+
+	/**
+	 * Set the next hop, the only node that should forward the packet
+	 * @param nextHop The address of the next hop, or Protocol.BROADCAST to let every node forward it
+	 */
+	public void setNextHop(int nextHop) {
+		buffer.putInt(NXT_POS, nextHop);
+	}
+
+	/**
+	 * @return The address of the next hop
+	 */
+	public int getNextHop() {
+		return buffer.getInt(NXT_POS);
 	}
 
 	/**
@@ -239,7 +327,35 @@ public class Packet {
 	}
 	
 	/**
-	 * @return The payload
+	 * Check if the length field fits the packet and the amount of bytes that were received
+	 * @param received The amount of bytes that were received
+	 * @return true if the length is valid, else false
+	 */
+	public boolean hasValidLength(int received) {
+		return getLength() >= HEADER_SIZE && getLength() <= received && getLength() <= buffer.capacity();
+	}
+
+	/**
+	 * @return The payload length
+	 */
+	public int getPayloadLength() {
+		return getLength() - PLD_POS;
+	}
+
+	/**
+	 * Get a view of the payload, the view shares its content with the packet
+	 * @return The payload as a buffer slice
+	 */
+	public ByteBuffer getPayloadBuffer() {
+		ByteBuffer view = buffer.duplicate();
+		view.limit(getLength());
+		view.position(PLD_POS);
+
+		return view.slice();
+	}
+
+	/**
+	 * @return A copy of the payload
 	 */
 	public byte[] getPayload() {
 		return Arrays.copyOfRange(buffer.array(), PLD_POS, getLength());
@@ -254,6 +370,122 @@ public class Packet {
 		buffer.put(payload);
 	}
 	
+	/**
+	 * Set the fragment header
+	 * @param id The id of the fragmented message
+	 * @param index The index of this fragment
+	 * @param count The total amount of fragments
+	 */
+	public void setFragment(short id, int index, int count) {
+		buffer.putShort(FID_POS, id);
+		buffer.put(FIX_POS, (byte) index);
+		buffer.put(FCT_POS, (byte) count);
+	}
+
+	/**
+	 * @return The id of the fragmented message
+	 */
+	public short getFragmentId() {
+		return buffer.getShort(FID_POS);
+	}
+
+	/**
+	 * @return The index of this fragment
+	 */
+	public int getFragmentIndex() {
+		return buffer.get(FIX_POS) & 0xFF;
+	}
+
+	/**
+	 * @return The total amount of fragments
+	 */
+	public int getFragmentCount() {
+		return buffer.get(FCT_POS) & 0xFF;
+	}
+
+	/**
+	 * Set the fragment payload
+	 * @param payload The array containing the fragment payload
+	 * @param offset The offset of the fragment payload
+	 * @param length The length of the fragment payload
+	 */
+	public void setFragmentPayload(byte[] payload, int offset, int length) {
+		buffer.position(FPL_POS);
+		buffer.put(payload, offset, length);
+	}
+
+	/**
+	 * @return A copy of the fragment payload
+	 */
+	public byte[] getFragmentPayload() {
+		return Arrays.copyOfRange(buffer.array(), FPL_POS, Math.max(getLength(), FPL_POS));
+	}
+
+	/**
+	 * XOR the bytes covered by forward error correction into a parity buffer. <br>
+	 * The hop count, transmission count, checksum and next hop change on every hop or retransmission, so they are left out.
+	 * @param parity The parity buffer, at least getLength() - PARITY_OFFSET long
+	 */
+	public void xorProtected(byte[] parity) {
+		byte[] data = buffer.array();
+
+		for (int n = PARITY_OFFSET; n < getLength(); n++) {
+			parity[n - PARITY_OFFSET] ^= data[n];
+		}
+
+		// XOR the hop count, transmission count, checksum and next hop a second time to cancel them out
+		for (int n : new int[] {HOP_POS, TRX_POS, CSM_POS, CSM_POS + 1, NXT_POS, NXT_POS + 1, NXT_POS + 2, NXT_POS + 3}) {
+			parity[n - PARITY_OFFSET] ^= data[n];
+		}
+	}
+
+	/**
+	 * Set the bytes covered by forward error correction, used to rebuild a lost packet
+	 * @param bytes The recovered bytes, starting at the sequence number
+	 * @param length The amount of bytes
+	 */
+	public void setProtected(byte[] bytes, int length) {
+		System.arraycopy(bytes, 0, buffer.array(), PARITY_OFFSET, length);
+	}
+
+	/**
+	 * Set the parity header and payload
+	 * @param count The amount of data packets in the group
+	 * @param parity The parity of the group
+	 * @param length The length of the parity
+	 */
+	public void setParity(int count, byte[] parity, int length) {
+		buffer.put(PCT_POS, (byte) count);
+		buffer.position(PPL_POS);
+		buffer.put(parity, 0, length);
+	}
+
+	/**
+	 * @return The amount of data packets in the group
+	 */
+	public int getParityCount() {
+		return buffer.get(PCT_POS) & 0xFF;
+	}
+
+	/**
+	 * @return The length of the parity payload
+	 */
+	public int getParityLength() {
+		return Math.max(getLength() - PPL_POS, 0);
+	}
+
+	/**
+	 * XOR the parity payload into a buffer
+	 * @param bytes The buffer, at least getParityLength() long
+	 */
+	public void xorParity(byte[] bytes) {
+		byte[] data = buffer.array();
+
+		for (int n = 0; n < getParityLength(); n++) {
+			bytes[n] ^= data[PPL_POS + n];
+		}
+	}
+
 	/**
 	 * @return The calculated checksum
 	 */
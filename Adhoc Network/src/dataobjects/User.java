@@ -37,12 +37,17 @@ public class User implements Serializable {
 		}
 		
 		// Set the color or choose a random bright color if the given color is null
-		Random random = new Random();
-		float hue = random.nextFloat();
-		float saturation = 1f;
-		float brightness = 0.85f;
-		
-		this.color = color != null ? color : Color.getHSBColor(hue, saturation, brightness);
+		if (color != null) {
+			this.color = color;
+		} else {
+			Random random = new Random();
+			float hue = random.nextFloat();
+			float saturation = 1f;
+			float brightness = 0.85f;
+
+			this.color = Color.getHSBColor(hue, saturation, brightness);
+		}
+
 		this.textColor = Color.BLACK;
 	}
 
@@ -77,6 +77,45 @@ public class DiffieHelman {
         return null;
     }
 
+    /**
+     * Sign the given byte array with the private key (SHA256 with RSA), anyone with the public key can verify it but only we can make it
+     * @param toSign The array to sign
+     * @return The signature
+     */
+    public byte[] sign(byte[] toSign) {
+        try {
+            Signature signature = Signature.getInstance("SHA256withRSA");
+            signature.initSign(priKey);
+            signature.update(toSign);
+
+            return signature.sign();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     * Verify the signature of the given byte array
+     * @param toVerify The signed array
+     * @param signature The signature
+     * @param key The public key of the signer
+     * @return true if the signature is valid, else false
+     */
+    public static boolean verify(byte[] toVerify, byte[] signature, PublicKey key) {
+        try {
+            Signature verifier = Signature.getInstance("SHA256withRSA");
+            verifier.initVerify(key);
+            verifier.update(toVerify);
+
+            return verifier.verify(signature);
+        } catch (GeneralSecurityException e) {
+            // A malformed signature is not a valid one
+            return false;
+        }
+    }
+
     /**
      * @return The generated private key
      */
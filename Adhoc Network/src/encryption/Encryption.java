@@ -58,6 +58,17 @@ public class Encryption {
      * @return The decrypted array
      */
     public static byte[] decrypt(byte[] toDecrypt, String key) {
+        return decrypt(toDecrypt, 0, toDecrypt.length, key);
+    }
+
+    /**
+     * Decrypt a part of the given byte array
+     * @param toDecrypt The array containing the encrypted data
+     * @param offset The offset of the encrypted data
+     * @param length The length of the encrypted data
+     * @return The decrypted array
+     */
+    public static byte[] decrypt(byte[] toDecrypt, int offset, int length, String key) {
         try {
             Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
             SecretKey aesKey = new SecretKeySpec(key != null ? key.getBytes() : standardKey.getBytes(), "AES");
@@ -65,7 +76,7 @@ public class Encryption {
 
             cipher.init(Cipher.DECRYPT_MODE, aesKey, ivParameterSpec);
 
-            return cipher.doFinal(toDecrypt);
+            return cipher.doFinal(toDecrypt, offset, length);
         } catch (NoSuchAlgorithmException e) {
             e.printStackTrace();
         } catch (NoSuchPaddingException e) {
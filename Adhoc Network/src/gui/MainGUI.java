@@ -13,7 +13,6 @@ import javax.swing.text.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.lang.reflect.InvocationTargetException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
@@ -25,6 +24,9 @@ import java.util.*;
 public class MainGUI implements ActionListener, Observer {
 
 	private final int MAX_CHARS = 5000; // Maximum amount of characters to display in a single JTextPane
+	private final int EVENT_QUEUE_SIZE = 4096; // Maximum amount of notifications waiting for the GUI, chat messages are never dropped
+	private final int EVENT_BATCH_SIZE = 64; // Maximum amount of updates handled before the GUI gets to repaint
+	private final int MAX_LISTED_NAMES = 5; // Maximum amount of names listed when several users enter or leave at once
 	
 	private JFrame frame;
 
@@ -47,6 +49,7 @@ public class MainGUI implements ActionListener, Observer {
 	private User currentUser;
 	
 	private Client client;
+	private GuiEventQueue events;
 
 	private boolean useTimestamps = true; // Whether or not timestamps should be displayed for messages and notifications
 	
@@ -402,42 +405,89 @@ public class MainGUI implements ActionListener, Observer {
 		}
 	}
 	
+	/**
+	 * Called by the client from the network threads, the update is queued and handled on the event dispatch thread so the network never waits for the GUI
+	 * @param o The client
+	 * @param arg A ChatMessage object or a command string
+	 */
 	@Override
 	public void update(Observable o, final Object arg) {
-		try {
-			// Wait until all events have been processed before updating the GUI
-			SwingUtilities.invokeAndWait(() -> {
-                // If the argument is a ChatMessage object
-                if (arg.getClass().equals(ChatMessage.class)) {
-                    append((ChatMessage) arg);
-                }
-
-                // If the argument is a String
-                if (arg.getClass().equals(String.class)) {
-                    // Split the string on the first space
-                    final String[] command = ((String) arg).split("\\s+", 2);
-
-                    // Check the command type
-                    switch (command[0]) {
-                        case Protocol.PRIVCHAT:
-                            newTab(command[1]);
-                            break;
-                        case Protocol.NOTIFY:
-                            showNotification(command[1], Protocol.MAINCHAT);
-                            break;
-                        case Protocol.PART:
-                            showNotification("User " + command[1] + " has left the chat.", Protocol.MAINCHAT);
-                            break;
-                        default:
-                            System.err.println("Unknown command received in GUI.");
-                            break;
-                    }
-                }
-            });
-		} catch (InterruptedException | InvocationTargetException e) {
-			e.printStackTrace();
+		// If the argument is a ChatMessage object
+		if (arg instanceof ChatMessage) {
+			events.offer(new GuiEventQueue.Event((ChatMessage) arg));
+		}
+
+		// If the argument is a String
+		if (arg instanceof String) {
+			// Split the string on the first space
+			final String[] command = ((String) arg).split("\\s+", 2);
+
+			// Check the command type
+			switch (command[0]) {
+				case Protocol.PRIVCHAT:
+					events.offer(new GuiEventQueue.Event(GuiEventQueue.Type.PRIVATE_CHAT, command[1]));
+					break;
+				case Protocol.NOTIFY:
+					events.offer(new GuiEventQueue.Event(GuiEventQueue.Type.NOTIFY, command[1]));
+					break;
+				case Protocol.ENTER:
+					events.offer(new GuiEventQueue.Event(GuiEventQueue.Type.ENTER, command[1]));
+					break;
+				case Protocol.PART:
+					events.offer(new GuiEventQueue.Event(GuiEventQueue.Type.PART, command[1]));
+					break;
+				default:
+					System.err.println("Unknown command received in GUI.");
+					break;
+			}
+		}
+	}
+
+	/**
+	 * Handle a queued update on the event dispatch thread
+	 * @param event The update
+	 */
+	private void handle(GuiEventQueue.Event event) {
+		switch (event.getType()) {
+			case MESSAGE:
+				append(event.getMessage());
+				break;
+			case PRIVATE_CHAT:
+				newTab(event.getText());
+				break;
+			case NOTIFY:
+				showNotification(event.getText(), Protocol.MAINCHAT);
+				break;
+			case ENTER:
+				showNotification(listNames(event.getNames()) + " entered the chat.", Protocol.MAINCHAT);
+				break;
+			case PART:
+				showNotification(listNames(event.getNames()) + " left the chat.", Protocol.MAINCHAT);
+				break;
 		}
 	}
+
+	/**
+	 * List the names of users that entered or left the chat at once, only the first few are named
+	 * @param names The names
+	 * @return The list, starting with "User" or "Users" and ending with the verb "has" or "have"
+	 */
+	private String listNames(java.util.List<String> names) {
+		if (names.size() == 1) {
+			return "User " + names.get(0) + " has";
+		}
+
+		int listed = names.size() > MAX_LISTED_NAMES ? MAX_LISTED_NAMES - 1 : names.size() - 1;
+		StringBuilder list = new StringBuilder("Users " + String.join(", ", names.subList(0, listed)));
+
+		if (listed < names.size() - 1) {
+			list.append(" and ").append(names.size() - listed).append(" others");
+		} else {
+			list.append(" and ").append(names.get(listed));
+		}
+
+		return list.append(" have").toString();
+	}
 	
 	/**
 	 * Create the application.
@@ -445,6 +495,7 @@ public class MainGUI implements ActionListener, Observer {
 	public MainGUI() {
 		chatPanes = new HashMap<>();
 		scrollPanes = new HashMap<>();
+		events = new GuiEventQueue(EVENT_QUEUE_SIZE, EVENT_BATCH_SIZE, this::handle);
 		
 		// Initialize the GUI
 		initialize();
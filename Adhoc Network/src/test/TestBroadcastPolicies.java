@@ -0,0 +1,204 @@
+package test;
+
+import dataobjects.Packet;
+import utils.*;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Simulates flooding a broadcast through random networks with every broadcast policy, and compares the rebroadcasts and reach with plain flooding
+ *
+ * @author Frank
+ */
+public class TestBroadcastPolicies {
+
+	private static final int NODES = 40;
+	private static final double AREA = 3.0;
+	private static final double RANGE = 1.0;
+	private static final int TRIALS = 200;
+
+	public static void main(String[] args) {
+		Map<String, Function<NeighborTable, BroadcastPolicy>> policies = new LinkedHashMap<>();
+		policies.put("Flooding", neighborTable -> new FloodingPolicy());
+		policies.put("Gossip", neighborTable -> new GossipPolicy(Protocol.GOSSIP_PROBABILITY, Protocol.GOSSIP_HOPS));
+		policies.put("Counter", neighborTable -> new CounterPolicy(Protocol.BROADCAST_COUNTER, Protocol.BROADCAST_DELAY));
+		policies.put("Coverage", neighborTable -> new CoveragePolicy(neighborTable, Protocol.BROADCAST_DELAY));
+
+		System.out.println(NODES + " nodes in a " + AREA + " x " + AREA + " area with range " + RANGE + ", " + TRIALS + " broadcasts");
+
+		double flooding = 0;
+
+		for (Map.Entry<String, Function<NeighborTable, BroadcastPolicy>> policy : policies.entrySet()) {
+			long rebroadcasts = 0;
+			long reached = 0;
+			long reachable = 0;
+			long suppressed = 0;
+
+			for (int trial = 0; trial < TRIALS; trial++) {
+				// Every policy gets the same networks
+				long[] result = simulate(new Random(trial), policy.getValue());
+				rebroadcasts += result[0];
+				reached += result[1];
+				reachable += result[2];
+				suppressed += result[3];
+			}
+
+			if (flooding == 0) {
+				flooding = rebroadcasts;
+			}
+
+			System.out.printf("%-9s - Rebroadcasts: %6.2f per broadcast, %5.1f%% saved (%d suppressed) - Reach: %5.1f%%%n", policy.getKey(), (double) rebroadcasts / TRIALS, 100 * (1 - rebroadcasts / flooding), suppressed, 100.0 * reached / reachable);
+		}
+	}
+
+	/**
+	 * Flood a broadcast from node 0 through a random network
+	 * @return The amount of rebroadcasts, the nodes reached, the nodes flooding can reach and the suppressed broadcasts
+	 */
+	private static long[] simulate(Random random, Function<NeighborTable, BroadcastPolicy> policy) {
+		double[][] positions = new double[NODES][2];
+		for (double[] position : positions) {
+			position[0] = random.nextDouble() * AREA;
+			position[1] = random.nextDouble() * AREA;
+		}
+
+		// Addresses start at 1, 0 is the broadcast address. Every node hears one beacon of each neighbor, then one with the neighbors of the neighbor.
+		List<List<Integer>> neighbors = new ArrayList<>();
+		NeighborTable[] neighborTables = new NeighborTable[NODES];
+		for (int node = 0; node < NODES; node++) {
+			neighborTables[node] = new NeighborTable(node + 1, Protocol.BEACON_WINDOW);
+			neighbors.add(new ArrayList<>());
+
+			for (int other = 0; other < NODES; other++) {
+				if (other != node && Math.hypot(positions[node][0] - positions[other][0], positions[node][1] - positions[other][1]) <= RANGE) {
+					neighbors.get(node).add(other);
+					neighborTables[node].addBeacon(other + 1, 0, other + 1, Protocol.MAXHOPS);
+				}
+			}
+		}
+
+		BroadcastSuppressor[] suppressors = new BroadcastSuppressor[NODES];
+		for (int node = 0; node < NODES; node++) {
+			for (int neighbor : neighbors.get(node)) {
+				neighborTables[node].addBeacon(neighbor + 1, 1, neighbor + 1, Protocol.MAXHOPS);
+				neighborTables[node].addReport(neighbor + 1, neighborTables[neighbor].getReport().trim().split(" "));
+			}
+
+			suppressors[node] = new BroadcastSuppressor(policy.apply(neighborTables[node]));
+		}
+
+		Packet packet = new Packet(Packet.HEADER_SIZE);
+		packet.setSource(1);
+		packet.setSeq(random.nextInt());
+		packet.setHops(Protocol.MAXHOPS);
+		packet.setLength();
+
+		// Events in time order: a copy arriving at a node, or a node deciding whether to forward
+		PriorityQueue<Event> events = new PriorityQueue<>();
+		boolean[] reached = new boolean[NODES];
+		reached[0] = true;
+		long rebroadcasts = 0;
+		transmit(events, random, neighbors, 0, 0, packet);
+
+		while (!events.isEmpty()) {
+			Event event = events.poll();
+
+			if (event.node == 0) {
+				continue;
+			}
+
+			if (event.packet != null) {
+				long delay = suppressors[event.node].addPacket(event.packet, event.from + 1);
+
+				if (delay >= 0) {
+					reached[event.node] = true;
+					events.add(new Event(event.time + delay, event.node, event.from, null));
+				}
+			} else {
+				Packet copy = suppressors[event.node].decide(BroadcastSuppressor.getKey(packet));
+
+				if (copy != null) {
+					copy.decreaseHops();
+
+					if (copy.getHops() > 0) {
+						transmit(events, random, neighbors, event.time, event.node, copy);
+						rebroadcasts++;
+					}
+				}
+			}
+		}
+
+		long suppressed = 0;
+		for (BroadcastSuppressor suppressor : suppressors) {
+			suppressed += suppressor.getSuppressed();
+		}
+
+		return new long[] {rebroadcasts, count(reached), count(reachable(neighbors)), suppressed};
+	}
+
+	/**
+	 * Send a copy to all neighbors of a node, every copy takes 1 to 3 milliseconds
+	 */
+	private static void transmit(PriorityQueue<Event> events, Random random, List<List<Integer>> neighbors, double time, int node, Packet packet) {
+		for (int neighbor : neighbors.get(node)) {
+			events.add(new Event(time + 1 + random.nextDouble() * 2, neighbor, node, packet));
+		}
+	}
+
+	/**
+	 * @return The nodes within reach of node 0 for the hop limit
+	 */
+	private static boolean[] reachable(List<List<Integer>> neighbors) {
+		boolean[] reachable = new boolean[NODES];
+		List<Integer> frontier = Collections.singletonList(0);
+		reachable[0] = true;
+
+		for (int hops = 0; hops < Protocol.MAXHOPS; hops++) {
+			List<Integer> next = new ArrayList<>();
+
+			for (int node : frontier) {
+				for (int neighbor : neighbors.get(node)) {
+					if (!reachable[neighbor]) {
+						reachable[neighbor] = true;
+						next.add(neighbor);
+					}
+				}
+			}
+
+			frontier = next;
+		}
+
+		return reachable;
+	}
+
+	private static int count(boolean[] nodes) {
+		int count = 0;
+		for (boolean node : nodes) {
+			if (node) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	private static class Event implements Comparable<Event> {
+		private final double time;
+		private final int node;
+		private final int from;
+		private final Packet packet;
+
+		private Event(double time, int node, int from, Packet packet) {
+			this.time = time;
+			this.node = node;
+			this.from = from;
+			this.packet = packet;
+		}
+
+		@Override
+		public int compareTo(Event other) {
+			return Double.compare(time, other.time);
+		}
+	}
+}
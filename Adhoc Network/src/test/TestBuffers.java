@@ -0,0 +1,248 @@
+package test;
+
+import dataobjects.Packet;
+import utils.ReceiveBuffer;
+import utils.SendBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Compares the circular send and receive windows with the map based buffers they replaced
+ *
+ * @author Frank
+ */
+public class TestBuffers {
+
+	private static final int[] WINDOW_SIZES = {20, 64, 128, 256};
+	private static final int PACKETS = 2000000;
+
+	private static final ByteBuffer NO_SACK = ByteBuffer.allocate(0);
+
+	public static void main(String[] args) {
+		System.out.println("Out of order delivery");
+		ReceiveBuffer receiveBuffer = new ReceiveBuffer(20);
+		for (int seq : new int[] {0, 2, 3, 5}) {
+			receiveBuffer.addPacket(packet(seq));
+		}
+		System.out.println("Ack: " + receiveBuffer.getAck() + " - Sack: " + Arrays.toString(receiveBuffer.getSack()) + " - Duplicate accepted: " + receiveBuffer.addPacket(packet(3)));
+
+		// Warm up both paths before timing them
+		for (int windowSize : WINDOW_SIZES) {
+			sendRing(windowSize);
+			sendMap(windowSize);
+			receiveRing(windowSize);
+			receiveMap(windowSize);
+		}
+
+		System.out.println("\nSend and acknowledge " + PACKETS + " packets");
+		for (int windowSize : WINDOW_SIZES) {
+			System.out.println("Window " + windowSize + " - Map: " + sendMap(windowSize) + " ns per packet - Ring: " + sendRing(windowSize) + " ns per packet");
+		}
+
+		System.out.println("\nReceive " + PACKETS + " packets, every other window out of order");
+		for (int windowSize : WINDOW_SIZES) {
+			System.out.println("Window " + windowSize + " - Map: " + receiveMap(windowSize) + " ns per packet - Ring: " + receiveRing(windowSize) + " ns per packet");
+		}
+	}
+
+	private static Packet packet(int seq) {
+		Packet packet = new Packet(Packet.HEADER_SIZE);
+		packet.setSeq(seq);
+
+		return packet;
+	}
+
+	/**
+	 * Fill the window, then acknowledge it in one cumulative acknowledgement
+	 * @return The time per packet in nanoseconds
+	 */
+	private static long sendRing(int windowSize) {
+		SendBuffer sendBuffer = new SendBuffer(windowSize, windowSize);
+		Packet[] packets = new Packet[windowSize];
+		for (int n = 0; n < windowSize; n++) {
+			packets[n] = new Packet(Packet.HEADER_SIZE);
+		}
+
+		long start = System.nanoTime();
+		for (int sent = 0; sent < PACKETS; ) {
+			for (Packet packet : packets) {
+				sendBuffer.offer(null, packet);
+			}
+
+			while (sendBuffer.poll() != null) {
+				sent++;
+			}
+
+			sendBuffer.ackPacket(sendBuffer.getSeq(), NO_SACK);
+		}
+
+		return (System.nanoTime() - start) / PACKETS;
+	}
+
+	/**
+	 * Same traffic as sendRing, on a copy of the map based send buffer
+	 * @return The time per packet in nanoseconds
+	 */
+	private static long sendMap(int windowSize) {
+		MapSendBuffer sendBuffer = new MapSendBuffer(windowSize);
+		Packet[] packets = new Packet[windowSize];
+		for (int n = 0; n < windowSize; n++) {
+			packets[n] = new Packet(Packet.HEADER_SIZE);
+		}
+
+		long start = System.nanoTime();
+		for (int sent = 0; sent < PACKETS; ) {
+			for (Packet packet : packets) {
+				sendBuffer.offer(packet);
+			}
+
+			while (sendBuffer.poll() != null) {
+				sent++;
+			}
+
+			sendBuffer.ackPacket(sendBuffer.seq);
+		}
+
+		return (System.nanoTime() - start) / PACKETS;
+	}
+
+	/**
+	 * Receive windows in order, and every other window with its first packet last
+	 * @return The time per packet in nanoseconds
+	 */
+	private static long receiveRing(int windowSize) {
+		ReceiveBuffer receiveBuffer = new ReceiveBuffer(windowSize);
+		Packet[] packets = receiveOrder(windowSize);
+
+		long start = System.nanoTime();
+		for (int received = 0; received < PACKETS; received += packets.length) {
+			for (Packet packet : packets) {
+				packet.setSeq(packet.getSeq() + packets.length);
+				receiveBuffer.addPacket(packet);
+			}
+		}
+
+		return (System.nanoTime() - start) / PACKETS;
+	}
+
+	/**
+	 * Same traffic as receiveRing, on a copy of the map based receive buffer
+	 * @return The time per packet in nanoseconds
+	 */
+	private static long receiveMap(int windowSize) {
+		MapReceiveBuffer receiveBuffer = new MapReceiveBuffer(windowSize);
+		Packet[] packets = receiveOrder(windowSize);
+
+		long start = System.nanoTime();
+		for (int received = 0; received < PACKETS; received += packets.length) {
+			for (Packet packet : packets) {
+				packet.setSeq(packet.getSeq() + packets.length);
+				receiveBuffer.addPacket(packet);
+			}
+		}
+
+		return (System.nanoTime() - start) / PACKETS;
+	}
+
+	/**
+	 * @return Two windows of packets, the second one with its first packet moved to the end
+	 */
+	private static Packet[] receiveOrder(int windowSize) {
+		Packet[] packets = new Packet[windowSize * 2];
+
+		for (int n = 0; n < windowSize; n++) {
+			packets[n] = packet(n - packets.length);
+			packets[windowSize + n] = packet(windowSize + (n + 1) % windowSize - packets.length);
+		}
+
+		return packets;
+	}
+
+	/**
+	 * The send buffer as it was before the circular window, without congestion control
+	 */
+	private static class MapSendBuffer {
+		private final int WINDOW_SIZE;
+
+		private Map<Integer, Segment> buffer = new HashMap<>();
+		private Deque<Segment> queue = new ArrayDeque<>();
+		private int base;
+		private int seq;
+
+		private MapSendBuffer(int windowSize) {
+			WINDOW_SIZE = windowSize;
+		}
+
+		private synchronized void offer(Packet packet) {
+			queue.add(new Segment(packet));
+		}
+
+		private synchronized Packet poll() {
+			if (queue.isEmpty() || seq - base >= WINDOW_SIZE) {
+				return null;
+			}
+
+			Segment segment = queue.poll();
+			segment.packet.setSeq(seq);
+			segment.sent = System.currentTimeMillis();
+			buffer.put(seq++, segment);
+
+			return segment.packet;
+		}
+
+		private synchronized void ackPacket(int ack) {
+			for (; base != ack; base++) {
+				buffer.remove(base);
+			}
+		}
+
+		private static class Segment {
+			private Packet packet;
+			private long sent;
+
+			private Segment(Packet packet) {
+				this.packet = packet;
+			}
+		}
+	}
+
+	/**
+	 * The receive buffer as it was before the circular window
+	 */
+	private static class MapReceiveBuffer {
+		private final int WINDOW_SIZE;
+
+		private Set<Integer> buffer = new HashSet<>();
+		private int expected;
+
+		private MapReceiveBuffer(int windowSize) {
+			WINDOW_SIZE = windowSize;
+		}
+
+		private synchronized boolean addPacket(Packet packet) {
+			int seq = packet.getSeq();
+			int distance = seq - expected;
+
+			if (distance < 0 && distance >= -WINDOW_SIZE) {
+				return false;
+			}
+
+			if (distance < 0 || distance >= WINDOW_SIZE) {
+				buffer.clear();
+				expected = seq;
+				distance = 0;
+			}
+
+			if (distance == 0) {
+				do {
+					expected++;
+				} while (buffer.remove(expected));
+
+				return true;
+			}
+
+			return buffer.add(seq);
+		}
+	}
+}
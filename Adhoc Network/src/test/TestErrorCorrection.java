@@ -0,0 +1,70 @@
+package test;
+
+import dataobjects.Packet;
+import utils.ParityDecoder;
+import utils.ParityEncoder;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @author Frank
+ */
+public class TestErrorCorrection {
+
+	public static void main(String[] args) {
+		Random random = new Random(1);
+		ParityEncoder encoder = new ParityEncoder();
+		ParityDecoder decoder = new ParityDecoder();
+		encoder.setGroupSize(4);
+
+		// Data packets of different lengths, the hop count changes on the way like it would when forwarded
+		Packet[] packets = new Packet[4];
+		Packet parity = null;
+		for (int n = 0; n < packets.length; n++) {
+			byte[] payload = new byte[100 + random.nextInt(Packet.MAX_PAYLOAD_SIZE - 100)];
+			random.nextBytes(payload);
+
+			packets[n] = new Packet(Packet.HEADER_SIZE + payload.length);
+			packets[n].setSource(1);
+			packets[n].setDestination(2);
+			packets[n].setSeq(10 + n);
+			packets[n].setAck(n);
+			packets[n].setHops((short) 3);
+			packets[n].setFlags(false, true, true);
+			packets[n].setPayload(payload);
+			packets[n].setLength();
+			packets[n].setChecksum();
+
+			parity = encoder.addPacket(packets[n]);
+			System.out.println("Packet " + packets[n].getSeq() + ", " + packets[n].getLength() + " bytes - Parity: " + (parity != null ? parity.getLength() + " bytes for " + parity.getParityCount() + " packets" : "none"));
+
+			packets[n].decreaseHops();
+			packets[n].setChecksum();
+		}
+
+		// Lose the third packet
+		for (int n = 0; n < packets.length; n++) {
+			if (n != 2) {
+				decoder.addPacket(packets[n]);
+			}
+		}
+
+		Packet recovered = decoder.addParity(parity);
+		System.out.println("\nRecovered packet " + recovered.getSeq() + ", " + recovered.getLength() + " bytes - Valid checksum: " + (recovered.getChecksum() == recovered.calculateChecksum()));
+		System.out.println("Payload equals original: " + Arrays.equals(recovered.getPayload(), packets[2].getPayload()));
+		System.out.println("Flags equal original: " + (recovered.getFlags() == packets[2].getFlags()) + " - Ack: " + recovered.getAck());
+
+		// Two lost packets in a group can't be rebuilt
+		for (int n = 0; n < packets.length; n++) {
+			packets[n].setSeq(20 + n);
+			parity = encoder.addPacket(packets[n]);
+
+			if (n > 1) {
+				decoder.addPacket(packets[n]);
+			}
+		}
+		System.out.println("\nTwo lost packets recovered: " + (decoder.addParity(parity) != null));
+		System.out.println("Loss rate: " + decoder.getLossRate() + " - Requested group size: " + decoder.takeGroupSizeChange(true));
+	}
+}
@@ -0,0 +1,55 @@
+package test;
+
+import dataobjects.Packet;
+import utils.ReassemblyBuffer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @author Frank
+ */
+public class TestFragmentation {
+
+	public static void main(String[] args) {
+		byte[] payload = new byte[5000];
+		new Random(1).nextBytes(payload);
+
+		int count = (payload.length + Packet.FRAGMENT_SIZE - 1) / Packet.FRAGMENT_SIZE;
+		System.out.println("Splitting a payload of " + payload.length + " bytes into " + count + " fragments");
+
+		List<Packet> fragments = new ArrayList<>();
+		for (int index = 0; index < count; index++) {
+			int offset = index * Packet.FRAGMENT_SIZE;
+			int length = Math.min(Packet.FRAGMENT_SIZE, payload.length - offset);
+
+			Packet packet = new Packet(Packet.HEADER_SIZE + Packet.FRAGMENT_HEADER_SIZE + length);
+			packet.setFlags(false, true, true, false, true);
+			packet.setFragment((short) 7, index, count);
+			packet.setFragmentPayload(payload, offset, length);
+			packet.setLength();
+			fragments.add(packet);
+		}
+
+		// Deliver the fragments out of order and with a duplicate
+		Collections.shuffle(fragments, new Random(2));
+		fragments.add(1, fragments.get(0));
+
+		ReassemblyBuffer reassemblyBuffer = new ReassemblyBuffer(4, 5000);
+		byte[] result = null;
+
+		for (Packet fragment : fragments) {
+			byte[] complete = reassemblyBuffer.addFragment(fragment);
+			System.out.println("Fragment " + fragment.getFragmentIndex() + "/" + fragment.getFragmentCount() + " complete: " + (complete != null));
+
+			if (complete != null) {
+				result = complete;
+			}
+		}
+
+		System.out.println("\nReassembled payload equals original: " + Arrays.equals(payload, result));
+	}
+}
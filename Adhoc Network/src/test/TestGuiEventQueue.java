@@ -0,0 +1,85 @@
+package test;
+
+import dataobjects.ChatMessage;
+import utils.GuiEventQueue;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Frank
+ */
+public class TestGuiEventQueue {
+
+	public static void main(String[] args) throws Exception {
+		int users = 1000;
+		List<GuiEventQueue.Event> handled = new ArrayList<>();
+		AtomicInteger names = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(1);
+
+		GuiEventQueue events = new GuiEventQueue(4096, 64, event -> {
+			handled.add(event);
+
+			if (event.getType() == GuiEventQueue.Type.NOTIFY) {
+				done.countDown();
+			} else {
+				names.addAndGet(event.getNames().size());
+			}
+		});
+
+		// Keep the event dispatch thread busy while a join storm comes in
+		SwingUtilities.invokeLater(() -> {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		});
+
+		long start = System.nanoTime();
+		for (int n = 0; n < users; n++) {
+			events.offer(new GuiEventQueue.Event(GuiEventQueue.Type.ENTER, "user" + n));
+		}
+		events.offer(new GuiEventQueue.Event(GuiEventQueue.Type.NOTIFY, "done"));
+		long time = System.nanoTime() - start;
+
+		System.out.println("Queued " + users + " joins in " + (time / users) + " ns per join while the GUI was busy");
+		System.out.println("Handled in time: " + done.await(5, TimeUnit.SECONDS));
+		System.out.println("Joins combined into " + (handled.size() - 1) + " updates, all names kept: " + (names.get() == users));
+		System.out.println("Order kept: " + (handled.get(handled.size() - 1).getType() == GuiEventQueue.Type.NOTIFY));
+
+		// A full queue drops notifications instead of blocking, and reports how many were dropped, chat messages are all kept
+		AtomicInteger messages = new AtomicInteger();
+		GuiEventQueue small = new GuiEventQueue(8, 64, event -> {
+			if (event.getType() == GuiEventQueue.Type.NOTIFY) {
+				System.out.println("Full queue: " + event.getText());
+			} else if (event.getType() == GuiEventQueue.Type.MESSAGE) {
+				messages.incrementAndGet();
+			}
+		});
+
+		CountDownLatch busy = new CountDownLatch(1);
+		SwingUtilities.invokeLater(() -> {
+			try {
+				busy.await();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		});
+
+		for (int n = 0; n < 20; n++) {
+			small.offer(new GuiEventQueue.Event(GuiEventQueue.Type.PART, "user" + n));
+			small.offer(new GuiEventQueue.Event((ChatMessage) null));
+		}
+		busy.countDown();
+
+		SwingUtilities.invokeAndWait(() -> {});
+		SwingUtilities.invokeAndWait(() -> {});
+		System.out.println("Chat messages kept: " + messages.get() + "/20");
+		System.exit(0);
+	}
+}
@@ -0,0 +1,107 @@
+package test;
+
+import dataobjects.ChatMessage;
+import dataobjects.MessageCodec;
+import dataobjects.User;
+
+import java.awt.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Objects;
+
+/**
+ * Checks that the binary message codec round trips a message, and compares it with Java serialization
+ *
+ * @author Frank
+ */
+public class TestMessageCodec {
+
+	private static final int ITERATIONS = 100000;
+
+	public static void main(String[] args) throws Exception {
+		User user = new User("Frank", Color.BLUE);
+		user.setAddress(0x0A000001);
+		ChatMessage message = new ChatMessage(user, Color.BLACK, 16, "Calibri", true, false, "hi", "Chatroom");
+
+		System.out.println("Round trip");
+		ChatMessage decoded = MessageCodec.decode(ByteBuffer.wrap(MessageCodec.encode(message)));
+		System.out.println("Original: " + message);
+		System.out.println("Decoded:  " + decoded);
+		check("Name", message.getUser().getName(), decoded.getUser().getName());
+		check("Text", message.getMessage(), decoded.getMessage());
+		check("Color", message.getColor(), decoded.getColor());
+		check("User color", message.getUser().getColor(), decoded.getUser().getColor());
+		check("User text color", message.getUser().getTextColor(), decoded.getUser().getTextColor());
+		check("Address", message.getUser().getAddress(), decoded.getUser().getAddress());
+		check("Font", message.getFont(), decoded.getFont());
+		check("Font size", message.getFontSize(), decoded.getFontSize());
+		check("Bold", message.isBold(), decoded.isBold());
+		check("Italic", message.isItalic(), decoded.isItalic());
+		check("Destination", message.getDestination(), decoded.getDestination());
+
+		// Messages without a color are still encoded, and decoded without a color
+		message.setColor(null);
+		check("No color", null, MessageCodec.decode(ByteBuffer.wrap(MessageCodec.encode(message))).getColor());
+		message.setColor(Color.BLACK);
+
+		// Strings are read with a bulk get, so direct and read-only buffers work too
+		byte[] encoded = MessageCodec.encode(message);
+		ByteBuffer direct = ByteBuffer.allocateDirect(encoded.length);
+		direct.put(encoded).flip();
+		check("Direct buffer text", message.getMessage(), MessageCodec.decode(direct).getMessage());
+		check("Read-only buffer text", message.getMessage(), MessageCodec.decode(ByteBuffer.wrap(encoded).asReadOnlyBuffer()).getMessage());
+
+		System.out.println("\nSize of \"" + message.getMessage() + "\"");
+		System.out.println("Serialization: " + serialize(message).length + " bytes");
+		System.out.println("Codec: " + MessageCodec.encode(message).length + " bytes");
+
+		// Warm up both paths before timing them
+		for (int n = 0; n < ITERATIONS; n++) {
+			deserialize(serialize(message));
+			MessageCodec.decode(ByteBuffer.wrap(MessageCodec.encode(message)));
+		}
+
+		System.out.println("\nEncode and decode " + ITERATIONS + " messages");
+
+		long start = System.nanoTime();
+		for (int n = 0; n < ITERATIONS; n++) {
+			deserialize(serialize(message));
+		}
+		System.out.println("Serialization: " + (System.nanoTime() - start) / ITERATIONS + " ns per message");
+
+		start = System.nanoTime();
+		for (int n = 0; n < ITERATIONS; n++) {
+			MessageCodec.decode(ByteBuffer.wrap(MessageCodec.encode(message)));
+		}
+		System.out.println("Codec: " + (System.nanoTime() - start) / ITERATIONS + " ns per message");
+	}
+
+	/**
+	 * Print a decoded field and fail if it differs from the original
+	 */
+	private static void check(String field, Object expected, Object actual) {
+		boolean equal = Objects.equals(expected, actual);
+		System.out.println(field + " equals original: " + equal);
+
+		if (!equal) {
+			throw new AssertionError(field + " was " + actual + " instead of " + expected);
+		}
+	}
+
+	private static byte[] serialize(ChatMessage message) throws IOException {
+		ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+		ObjectOutputStream objectStream = new ObjectOutputStream(new BufferedOutputStream(byteStream));
+		objectStream.writeObject(message);
+		objectStream.close();
+
+		return byteStream.toByteArray();
+	}
+
+	private static ChatMessage deserialize(byte[] data) throws IOException, ClassNotFoundException {
+		ObjectInputStream objectStream = new ObjectInputStream(new BufferedInputStream(new ByteArrayInputStream(data)));
+		ChatMessage message = (ChatMessage) objectStream.readObject();
+		objectStream.close();
+
+		return message;
+	}
+}
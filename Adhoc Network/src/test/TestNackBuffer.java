@@ -0,0 +1,50 @@
+package test;
+
+import dataobjects.Packet;
+import utils.NackSendBuffer;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Checks when the deliveries of messages that are repaired on request (NACK) complete
+ *
+ * @author Frank
+ */
+public class TestNackBuffer {
+
+	private static final long RETENTION = 1000;
+
+	public static void main(String[] args) {
+		NackSendBuffer nackBuffer = new NackSendBuffer(4, RETENTION);
+		long now = System.currentTimeMillis();
+
+		CompletableFuture<Void> quiet = new CompletableFuture<>();
+		nackBuffer.addPackets(quiet, packet(), packet());
+		CompletableFuture<Void> requested = new CompletableFuture<>();
+		nackBuffer.addPackets(requested, packet());
+
+		System.out.println("Repair of a requested packet: " + (nackBuffer.getRepair(2, now) != null));
+		System.out.println("Complete before aging out: " + quiet.isDone());
+
+		// Nothing is repaired after the retention time, the request that comes in then means a member is still missing the message
+		nackBuffer.getRepair(2, now + 2 * RETENTION);
+		nackBuffer.expire(now + 2 * RETENTION);
+		System.out.println("Complete after aging out: " + (quiet.isDone() && !quiet.isCompletedExceptionally()));
+		System.out.println("Failed while still requested: " + requested.isCompletedExceptionally());
+
+		// A full buffer ages out its oldest message early
+		CompletableFuture<Void> replaced = new CompletableFuture<>();
+		nackBuffer.addPackets(replaced, packet());
+		nackBuffer.addPackets(null, packet(), packet(), packet(), packet());
+		System.out.println("Complete after being replaced: " + (replaced.isDone() && !replaced.isCompletedExceptionally()));
+
+		CompletableFuture<Void> closed = new CompletableFuture<>();
+		nackBuffer.addPackets(closed, packet());
+		nackBuffer.close();
+		System.out.println("Failed when closed: " + closed.isCompletedExceptionally());
+	}
+
+	private static Packet packet() {
+		return new Packet(Packet.HEADER_SIZE);
+	}
+}
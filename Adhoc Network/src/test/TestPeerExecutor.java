@@ -0,0 +1,114 @@
+package test;
+
+import utils.PeerExecutor;
+import utils.ShardedExecutor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Frank
+ */
+public class TestPeerExecutor {
+
+	public static void main(String[] args) throws Exception {
+		ThreadFactory virtualThreads = PeerExecutor.getVirtualThreads();
+		System.out.println("Virtual threads available: " + (virtualThreads != null));
+
+		int peers = 200;
+		int tasks = 100;
+		ThreadFactory threads = virtualThreads != null ? virtualThreads : Executors.defaultThreadFactory();
+		PeerExecutor executor = new PeerExecutor("Peer", threads, 1024, 200, peers, new ShardedExecutor("Fallback", 2, 1024));
+
+		// One peer does a slow key generation, the others must not wait for it
+		CountDownLatch slow = new CountDownLatch(1);
+		CountDownLatch others = new CountDownLatch(peers - 1);
+		executor.execute(0, () -> {
+			try {
+				slow.await();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		});
+
+		List<List<Integer>> order = new ArrayList<>();
+		for (int peer = 0; peer < peers; peer++) {
+			List<Integer> received = new ArrayList<>();
+			order.add(received);
+
+			for (int n = 0; n < tasks; n++) {
+				int seq = n;
+				int key = peer;
+				executor.execute(peer, () -> {
+					received.add(seq);
+
+					if (seq == tasks - 1 && key != 0) {
+						others.countDown();
+					}
+				});
+			}
+		}
+
+		System.out.println("Other peers done while one is blocked: " + others.await(5, TimeUnit.SECONDS));
+		slow.countDown();
+
+		Thread.sleep(100);
+		boolean ordered = true;
+		for (List<Integer> received : order) {
+			for (int n = 0; n < received.size(); n++) {
+				ordered &= received.get(n) == n;
+			}
+			ordered &= received.size() == tasks;
+		}
+		System.out.println("Tasks of every peer ran in order: " + ordered);
+
+		// Idle threads end, the next task starts a new one
+		Thread.sleep(500);
+		CountDownLatch restarted = new CountDownLatch(1);
+		executor.execute(1, restarted::countDown);
+		System.out.println("Idle peer restarted: " + restarted.await(1, TimeUnit.SECONDS));
+
+		executor.shutdown();
+		System.out.println("Task rejected after shutdown: " + !executor.execute(1, () -> {}));
+
+		// A task that doesn't fit in the queue of its peer is rejected, so the caller can clean up after it
+		CountDownLatch blocked = new CountDownLatch(1);
+		PeerExecutor small = new PeerExecutor("Small", threads, 1, 200, peers, new ShardedExecutor("Fallback", 2, 1));
+		small.execute(0, () -> {
+			try {
+				blocked.await();
+			} catch (InterruptedException e) {
+				// Stopped by the shutdown
+			}
+		});
+		Thread.sleep(100);
+		boolean queued = small.execute(0, () -> {});
+		System.out.println("Task rejected when the queue is full: " + (queued && !small.execute(0, () -> {})));
+		blocked.countDown();
+		small.shutdown();
+
+		// Spoofed sources don't get more threads than the cap, their tasks still run on the fallback
+		int cap = 4;
+		int sources = 1000;
+		CountDownLatch spoofed = new CountDownLatch(sources);
+		PeerExecutor capped = new PeerExecutor("Capped", threads, 1024, 200, cap, new ShardedExecutor("Fallback", 2, 1024));
+		for (int source = 0; source < sources; source++) {
+			capped.execute(source, spoofed::countDown);
+		}
+
+		int started = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().startsWith("Capped-")) {
+				started++;
+			}
+		}
+		System.out.println("Threads started for " + sources + " sources: " + started + " (max " + cap + ")");
+		System.out.println("Tasks of all sources ran: " + spoofed.await(1, TimeUnit.SECONDS));
+
+		capped.shutdown();
+	}
+}
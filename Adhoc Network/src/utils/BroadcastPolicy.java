@@ -0,0 +1,27 @@
+package utils;
+
+import java.util.Set;
+
+/**
+ * Policy that decides whether a node forwards a flooded broadcast. <br>
+ * The node first listens for the copies its neighbors forward for getDelay() milliseconds, then the policy decides with what it heard.
+ *
+ * @author Frank
+ */
+public interface BroadcastPolicy {
+
+    /**
+     * @return The time in milliseconds to listen for copies of a new broadcast before deciding, 0 to decide right away
+     */
+    long getDelay();
+
+    /**
+     * Decide whether to forward a broadcast
+     * @param source The source of the broadcast
+     * @param distance The amount of hops the first copy travelled
+     * @param copies The amount of copies heard, including the first one
+     * @param heardFrom The neighbors that sent us a copy
+     * @return true if the broadcast should be forwarded, false if it is suppressed
+     */
+    boolean shouldForward(int source, int distance, int copies, Set<Integer> heardFrom);
+}
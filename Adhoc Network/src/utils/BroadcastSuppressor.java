@@ -0,0 +1,206 @@
+package utils;
+
+import dataobjects.Packet;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which flooded broadcasts to forward using a pluggable broadcast policy, and counts the rebroadcasts the policy saved. <br>
+ * Every copy of a broadcast is added, the first one starts the listening period of the policy and later ones are counted as duplicates. <br>
+ * Broadcasts are told apart by source, sequence number, flags and transmission count, so the group addressed packets a source streams
+ * and their retransmissions are all decided on. Only the latest Protocol.MAX_TRACKED_BROADCASTS broadcasts are tracked.
+ *
+ * @author Frank
+ */
+public class BroadcastSuppressor {
+    private volatile BroadcastPolicy policy;
+
+    private Map<Key, Broadcast> broadcasts;
+
+    private long received;
+    private long duplicates;
+    private long forwarded;
+    private long suppressed;
+
+    /**
+     * Constructor
+     * @param policy The broadcast policy
+     */
+    public BroadcastSuppressor(BroadcastPolicy policy) {
+        this.policy = policy;
+        broadcasts = new LinkedHashMap<Key, Broadcast>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Broadcast> eldest) {
+                return size() > Protocol.MAX_TRACKED_BROADCASTS;
+            }
+        };
+    }
+
+    /**
+     * Add a received copy of a broadcast
+     * @param packet The copy, it is copied if it is the first one so the buffer can be reused
+     * @param previousHop The neighbor that sent us the copy
+     * @return The time in milliseconds after which decide() should be called if this is the first copy, or -1 if it is a duplicate
+     */
+    public synchronized long addPacket(Packet packet, int previousHop) {
+        Key key = getKey(packet);
+        Broadcast broadcast = broadcasts.get(key);
+
+        if (broadcast != null) {
+            broadcast.copies++;
+            broadcast.heardFrom.add(previousHop);
+            duplicates++;
+
+            return -1;
+        }
+
+        // Keep a copy to forward once the policy decided
+        Packet copy = new Packet(packet.getLength());
+        System.arraycopy(packet.getData(), 0, copy.getData(), 0, packet.getLength());
+
+        broadcast = new Broadcast(copy, Protocol.MAXHOPS - packet.getHops() + 1);
+        broadcast.heardFrom.add(previousHop);
+        broadcasts.put(key, broadcast);
+        received++;
+
+        return policy.getDelay();
+    }
+
+    /**
+     * Decide whether to forward a broadcast once its listening period is over
+     * @param key The key of the broadcast
+     * @return The copy to forward, or null if it is suppressed, was decided already or is no longer tracked
+     */
+    public synchronized Packet decide(Key key) {
+        Broadcast broadcast = broadcasts.get(key);
+
+        if (broadcast == null || broadcast.packet == null) {
+            return null;
+        }
+
+        // Keep the broadcast so later copies are still recognized as duplicates
+        Packet packet = broadcast.packet;
+        broadcast.packet = null;
+
+        if (!policy.shouldForward(key.source, broadcast.distance, broadcast.copies, broadcast.heardFrom)) {
+            suppressed++;
+            return null;
+        }
+
+        forwarded++;
+
+        return packet;
+    }
+
+    /**
+     * Forget the broadcasts of a source. Used when a user leaves.
+     * @param source The source address
+     */
+    public synchronized void removeSource(int source) {
+        broadcasts.keySet().removeIf(key -> key.source == source);
+    }
+
+    /**
+     * @param packet A copy of a broadcast
+     * @return The key the broadcast is tracked by
+     */
+    public static Key getKey(Packet packet) {
+        return new Key(packet.getSource(), packet.getSeq(), packet.getFlags(), packet.getTransmission());
+    }
+
+    /**
+     * Set the broadcast policy, broadcasts that are being listened to are decided by the new policy
+     * @param policy The broadcast policy
+     */
+    public void setPolicy(BroadcastPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * @return The broadcast policy
+     */
+    public BroadcastPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return The amount of broadcasts received, not counting duplicates
+     */
+    public synchronized long getReceived() {
+        return received;
+    }
+
+    /**
+     * @return The amount of duplicate copies received
+     */
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @return The amount of broadcasts forwarded
+     */
+    public synchronized long getForwarded() {
+        return forwarded;
+    }
+
+    /**
+     * @return The amount of broadcasts suppressed, the rebroadcasts the policy saved compared to flooding
+     */
+    public synchronized long getSuppressed() {
+        return suppressed;
+    }
+
+    /**
+     * Identity of a broadcast, the same for all its copies
+     */
+    public static final class Key {
+        private final int source;
+        private final int seq;
+        private final short flags;
+        private final int transmission;
+
+        private Key(int source, int seq, short flags, int transmission) {
+            this.source = source;
+            this.seq = seq;
+            this.flags = flags;
+            this.transmission = transmission;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+
+            Key key = (Key) o;
+
+            return source == key.source && seq == key.seq && flags == key.flags && transmission == key.transmission;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((source * 31 + seq) * 31 + flags) * 31 + transmission;
+        }
+    }
+
+    /**
+     * Tracked broadcast
+     */
+    private static class Broadcast {
+        private final int distance;
+        private Packet packet;
+        private int copies;
+        private Set<Integer> heardFrom;
+
+        private Broadcast(Packet packet, int distance) {
+            this.distance = distance;
+            this.packet = packet;
+            this.copies = 1;
+            this.heardFrom = new HashSet<>();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package utils;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Broadcast policy that suppresses a broadcast once enough copies were heard. <br>
+ * Every copy a node hears covers part of its own range, after a few copies forwarding it again hardly reaches anyone new.
+ *
+ * @author Frank
+ */
+public class CounterPolicy implements BroadcastPolicy {
+    private final int threshold;
+    private final long maxDelay;
+
+    /**
+     * Constructor
+     * @param threshold The amount of copies from which a broadcast is suppressed
+     * @param maxDelay The maximum time in milliseconds to listen for copies
+     */
+    public CounterPolicy(int threshold, long maxDelay) {
+        this.threshold = threshold;
+        this.maxDelay = maxDelay;
+    }
+
+    @Override
+    public long getDelay() {
+        return ThreadLocalRandom.current().nextLong(maxDelay + 1);
+    }
+
+    @Override
+    public boolean shouldForward(int source, int distance, int copies, Set<Integer> heardFrom) {
+        return copies < threshold;
+    }
+
+    @Override
+    public String toString() {
+        return "Counter (c = " + threshold + ")";
+    }
+}
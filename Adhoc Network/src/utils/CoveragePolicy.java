@@ -0,0 +1,54 @@
+package utils;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Broadcast policy that suppresses a broadcast once all neighbors have it. <br>
+ * A neighbor that sent us a copy has the broadcast, and so do the neighbors it reported in its last beacon since they heard the same copy.
+ *
+ * @author Frank
+ */
+public class CoveragePolicy implements BroadcastPolicy {
+    private final NeighborTable neighborTable;
+    private final long maxDelay;
+
+    /**
+     * Constructor
+     * @param neighborTable The neighbor table to take the neighbors and their neighbors from
+     * @param maxDelay The maximum time in milliseconds to listen for copies
+     */
+    public CoveragePolicy(NeighborTable neighborTable, long maxDelay) {
+        this.neighborTable = neighborTable;
+        this.maxDelay = maxDelay;
+    }
+
+    @Override
+    public long getDelay() {
+        return ThreadLocalRandom.current().nextLong(maxDelay + 1);
+    }
+
+    @Override
+    public boolean shouldForward(int source, int distance, int copies, Set<Integer> heardFrom) {
+        Set<Integer> uncovered = neighborTable.getNeighbors();
+
+        // Without any known neighbors there is nothing to judge the coverage by, so just forward
+        if (uncovered.isEmpty()) {
+            return true;
+        }
+
+        uncovered.removeAll(heardFrom);
+        uncovered.remove(source);
+
+        for (int neighbor : heardFrom) {
+            uncovered.removeAll(neighborTable.getNeighborsOf(neighbor));
+        }
+
+        return !uncovered.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "Neighbor coverage";
+    }
+}
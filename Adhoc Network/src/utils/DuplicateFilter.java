@@ -0,0 +1,105 @@
+package utils;
+
+import dataobjects.Packet;
+
+import java.util.Arrays;
+
+/**
+ * Duplicate filter for flooded packets, a rotating Bloom filter keyed on source, sequence number, flags, acknowledgement number and transmission count. <br>
+ * Packets are remembered for one to two periods, so the memory and time per packet stay the same however large the network grows. <br>
+ * Retransmissions carry a higher transmission count, so they are forwarded again however long the period is.
+ * The period only has to outlast the slowest path a copy can take. <br>
+ * A false positive drops a packet that is new, which the retransmissions recover from.
+ *
+ * @author Frank
+ */
+public class DuplicateFilter {
+    private static final int HASHES = 3;
+
+    private final long PERIOD;
+    private final int mask;
+
+    private long[] current;
+    private long[] previous;
+    private long rotated;
+
+    /**
+     * Constructor
+     * @param bits The amount of bits per generation, rounded up to a power of two
+     * @param period The time in milliseconds after which a generation is rotated
+     */
+    public DuplicateFilter(int bits, long period) {
+        int size = Integer.highestOneBit(Math.max(bits - 1, Long.SIZE)) << 1;
+        mask = size - 1;
+        current = new long[size / Long.SIZE];
+        previous = new long[size / Long.SIZE];
+        PERIOD = period;
+        rotated = System.currentTimeMillis();
+    }
+
+    /**
+     * Add a packet to the filter
+     * @param packet The packet to add
+     * @return true if the packet has not been seen recently, false if it is (probably) a duplicate
+     */
+    public synchronized boolean addPacket(Packet packet) {
+        rotate(System.currentTimeMillis());
+
+        // Acknowledgements all have sequence number 0, so their acknowledgement number and length tell them apart
+        long key = ((long) packet.getSource() << 32 | packet.getSeq() & 0xFFFFFFFFL) * 0x9E3779B97F4A7C15L
+                ^ ((long) packet.getFlags() << 48 | (long) packet.getLength() << 32 | packet.getAck() & 0xFFFFFFFFL)
+                ^ (packet.getTransmission() + 1L) * 0xC2B2AE3D27D4EB4FL;
+        boolean seen = true;
+
+        for (int n = 0; n < HASHES; n++) {
+            // Take the bit positions from different parts of a well mixed hash
+            key = mix(key + n);
+            int bit = (int) key & mask;
+
+            if (!isSet(current, bit) && !isSet(previous, bit)) {
+                seen = false;
+            }
+
+            current[bit / Long.SIZE] |= 1L << bit;
+        }
+
+        return !seen;
+    }
+
+    /**
+     * Drop the oldest generation once the period has passed
+     * @param now The current time in milliseconds
+     */
+    private void rotate(long now) {
+        if (now - rotated >= PERIOD * 2) {
+            // Both generations have expired
+            Arrays.fill(current, 0);
+            Arrays.fill(previous, 0);
+            rotated = now;
+        } else if (now - rotated >= PERIOD) {
+            // The current generation becomes the previous one, the oldest is reused
+            long[] oldest = previous;
+            previous = current;
+            current = oldest;
+
+            Arrays.fill(current, 0);
+            rotated = now;
+        }
+    }
+
+    private static boolean isSet(long[] bits, int bit) {
+        return (bits[bit / Long.SIZE] & 1L << bit) != 0;
+    }
+
+    /**
+     * Finalizer of a 64 bit hash, spreads every input bit over the output
+     * @param key The value to mix
+     * @return The mixed value
+     */
+    private static long mix(long key) {
+        key = (key ^ key >>> 33) * 0xFF51AFD7ED558CCDL;
+        key = (key ^ key >>> 33) * 0xC4CEB9FE1A85EC53L;
+
+        return key ^ key >>> 33;
+    }
+}
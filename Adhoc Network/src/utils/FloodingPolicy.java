@@ -0,0 +1,26 @@
+package utils;
+
+import java.util.Set;
+
+/**
+ * Broadcast policy that forwards every broadcast, plain flooding
+ *
+ * @author Frank
+ */
+public class FloodingPolicy implements BroadcastPolicy {
+
+    @Override
+    public long getDelay() {
+        return 0;
+    }
+
+    @Override
+    public boolean shouldForward(int source, int distance, int copies, Set<Integer> heardFrom) {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "Flooding";
+    }
+}
@@ -0,0 +1,40 @@
+package utils;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Broadcast policy that forwards a broadcast with a fixed probability (gossip). <br>
+ * The nodes close to the source always forward, so a broadcast isn't lost when the few nodes around the source all happen to drop it.
+ *
+ * @author Frank
+ */
+public class GossipPolicy implements BroadcastPolicy {
+    private final double probability;
+    private final int hops;
+
+    /**
+     * Constructor
+     * @param probability The probability of forwarding a broadcast, between 0 and 1
+     * @param hops The distance from the source up to which broadcasts are always forwarded
+     */
+    public GossipPolicy(double probability, int hops) {
+        this.probability = probability;
+        this.hops = hops;
+    }
+
+    @Override
+    public long getDelay() {
+        return 0;
+    }
+
+    @Override
+    public boolean shouldForward(int source, int distance, int copies, Set<Integer> heardFrom) {
+        return distance <= hops || ThreadLocalRandom.current().nextDouble() < probability;
+    }
+
+    @Override
+    public String toString() {
+        return "Gossip (p = " + probability + ")";
+    }
+}
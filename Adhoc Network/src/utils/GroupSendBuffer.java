@@ -0,0 +1,410 @@
+package utils;
+
+import dataobjects.Packet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Send buffer for group addressed packets. <br>
+ * Every packet is sent once to all members, and kept until every member it was sent to acknowledged it. <br>
+ * Retransmissions go to the whole group again, members that already have the packet drop the copy. <br>
+ * The window is a circular array indexed by sequence number, the slowest member holds its base back.
+ *
+ * @author Frank
+ */
+public class GroupSendBuffer {
+    private final int WINDOW_SIZE;
+    private final int QUEUE_SIZE;
+
+    /* Window of sent packets, slot seq & mask, with the members that have not acknowledged them */
+    private final int mask;
+    private Packet[] packets;
+    private BitSet[] pending;
+    private Delivery[] deliveries;
+    private long[] sent;
+    private int[] transmissions;
+
+    private Deque<Packet> queue;
+    private Deque<Delivery> queuedDeliveries;
+
+    /* Members by address, every member has a bit in the pending sets */
+    private Map<Integer, Integer> members;
+    private BitSet usedBits;
+
+    private RttEstimator rttEstimator;
+
+    private int base;
+    private int seq;
+
+    private long lastBackoff;
+
+    /**
+     * Constructor
+     * @param windowSize The maximum window size
+     * @param queueSize The maximum amount of packets waiting to be sent
+     */
+    public GroupSendBuffer(int windowSize, int queueSize) {
+        WINDOW_SIZE = windowSize;
+        QUEUE_SIZE = queueSize;
+
+        int capacity = Integer.highestOneBit(Math.max(windowSize - 1, 1)) << 1;
+        mask = capacity - 1;
+        packets = new Packet[capacity];
+        pending = new BitSet[capacity];
+        deliveries = new Delivery[capacity];
+        sent = new long[capacity];
+        transmissions = new int[capacity];
+
+        for (int index = 0; index < capacity; index++) {
+            pending[index] = new BitSet();
+        }
+
+        queue = new ArrayDeque<>();
+        queuedDeliveries = new ArrayDeque<>();
+        members = new HashMap<>();
+        usedBits = new BitSet();
+        rttEstimator = new RttEstimator();
+        base = 0;
+        seq = 0;
+    }
+
+    /**
+     * Queue packets to be sent to a group, either all of them are queued or none
+     * @param recipients The future of every member that should receive the packets, completed once the member acknowledged all of them
+     * @param packets The packets to queue, their sequence numbers are set once they leave the queue
+     * @return true if the packets were queued, false if the queue does not have room for all of them
+     */
+    public synchronized boolean offer(Map<Integer, CompletableFuture<Void>> recipients, Packet... packets) {
+        if (queue.size() + packets.length > QUEUE_SIZE) {
+            return false;
+        }
+
+        Delivery delivery = new Delivery(recipients, packets.length);
+
+        for (Packet packet : packets) {
+            queue.add(packet);
+            queuedDeliveries.add(delivery);
+        }
+
+        return true;
+    }
+
+    /**
+     * Take the next queued packet if the window has room for it and add it to the buffer
+     * @return The packet to send, or null if the queue is empty or the window is full
+     */
+    public synchronized Packet poll() {
+        if (queue.isEmpty() || seq - base >= WINDOW_SIZE) {
+            return null;
+        }
+
+        Packet packet = queue.poll();
+        Delivery delivery = queuedDeliveries.poll();
+        packet.setSeq(seq);
+
+        // The packet is pending for every recipient that is still a member
+        int index = seq & mask;
+        packets[index] = packet;
+        deliveries[index] = delivery;
+        sent[index] = System.currentTimeMillis();
+        transmissions[index] = 1;
+        pending[index].clear();
+
+        for (int address : delivery.recipients.keySet()) {
+            pending[index].set(getBit(address));
+        }
+
+        seq++;
+
+        // Packets without recipients are done right away
+        advance();
+
+        return packet;
+    }
+
+    /**
+     * Mark a packet as retransmitted if its retransmission timeout has expired. <br>
+     * Members that still have not acknowledged it after too many retransmissions are removed from the group, their deliveries fail.
+     * @param seq The sequence number of the packet
+     * @param now The current time in milliseconds
+     * @return The packet to retransmit, or null if it was acknowledged by all members or has not expired
+     */
+    public Packet retransmit(int seq, long now) {
+        List<CompletableFuture<Void>> failed = new ArrayList<>();
+        Packet packet = null;
+
+        synchronized (this) {
+            int index = seq & mask;
+
+            if (!isInFlight(seq) || now - sent[index] < rttEstimator.getRto()) {
+                return null;
+            }
+
+            if (transmissions[index] <= Protocol.MAX_RETRANSMISSIONS) {
+                // Back off once per timeout period, packets that time out again will wait twice as long
+                if (now - lastBackoff >= rttEstimator.getRto()) {
+                    rttEstimator.backoff();
+                    lastBackoff = now;
+                }
+
+                sent[index] = now;
+                transmissions[index]++;
+                packet = packets[index];
+            } else {
+                // Give up on the members that don't answer
+                for (Map.Entry<Integer, Integer> member : new ArrayList<>(members.entrySet())) {
+                    if (pending[index].get(member.getValue())) {
+                        failed.addAll(removeMember(member.getKey(), member.getValue()));
+                    }
+                }
+            }
+        }
+
+        for (CompletableFuture<Void> delivery : failed) {
+            delivery.completeExceptionally(new TimeoutException("Member stopped acknowledging packets."));
+        }
+
+        return packet;
+    }
+
+    /**
+     * Get the time at which a packet should be checked for retransmission again
+     * @param seq The sequence number of the packet
+     * @param now The current time in milliseconds
+     * @return The deadline in milliseconds, or -1 if the packet has been acknowledged by all members
+     */
+    public synchronized long getDeadline(int seq, long now) {
+        return isInFlight(seq) ? sent[seq & mask] + rttEstimator.getRto() : -1;
+    }
+
+    /**
+     * Acknowledge packets for a member
+     * @param address The address of the member
+     * @param ack The acknowledgement number, all packets with a lower sequence number have been received
+     * @param sack Selective acknowledgement bitmap, bit n is set if packet ack + 1 + n has been received
+     */
+    public void ackPacket(int address, int ack, ByteBuffer sack) {
+        List<CompletableFuture<Void>> delivered = new ArrayList<>();
+
+        synchronized (this) {
+            Integer bit = members.get(address);
+
+            // Ignore acknowledgements of unknown members and for packets we have not sent
+            if (bit == null || ack - base > seq - base) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+
+            for (int n = Math.max(ack - base, 0); n > 0; n--) {
+                acknowledge(ack - n, bit, address, now, delivered);
+            }
+
+            int bits = Math.min(sack.remaining() * Byte.SIZE, seq - ack - 1);
+
+            for (int n = 0; n < bits; n++) {
+                if ((sack.get(sack.position() + n / Byte.SIZE) & (1 << (n % Byte.SIZE))) != 0) {
+                    acknowledge(ack + 1 + n, bit, address, now, delivered);
+                }
+            }
+
+            advance();
+        }
+
+        // Complete the futures outside of the lock, their callbacks run on this thread
+        for (CompletableFuture<Void> delivery : delivered) {
+            delivery.complete(null);
+        }
+    }
+
+    /**
+     * Clear the pending bit of a member for a packet
+     * @param seq The sequence number of the packet
+     * @param bit The bit of the member
+     * @param address The address of the member
+     * @param now The current time in milliseconds
+     * @param delivered List to add the future of the member to if this was its last unacknowledged packet of a delivery
+     */
+    private void acknowledge(int seq, int bit, int address, long now, List<CompletableFuture<Void>> delivered) {
+        int index = seq & mask;
+
+        if (!isInFlight(seq) || !pending[index].get(bit)) {
+            return;
+        }
+
+        pending[index].clear(bit);
+
+        CompletableFuture<Void> future = deliveries[index].acknowledge(address);
+
+        if (future != null) {
+            delivered.add(future);
+        }
+
+        // The last member to acknowledge a packet measures the round trip time of the group (Karn)
+        if (pending[index].isEmpty() && transmissions[index] == 1) {
+            rttEstimator.addSample(now - sent[index]);
+        }
+    }
+
+    /**
+     * Move the base past the packets all members acknowledged
+     */
+    private void advance() {
+        while (base != seq && pending[base & mask].isEmpty()) {
+            packets[base & mask] = null;
+            deliveries[base & mask] = null;
+            base++;
+        }
+    }
+
+    /**
+     * Remove a member, its pending deliveries fail. Used when a user leaves.
+     * @param address The address of the member
+     */
+    public void removeMember(int address) {
+        List<CompletableFuture<Void>> failed;
+
+        synchronized (this) {
+            Integer bit = members.get(address);
+
+            if (bit == null) {
+                return;
+            }
+
+            failed = removeMember(address, bit);
+        }
+
+        for (CompletableFuture<Void> delivery : failed) {
+            delivery.completeExceptionally(new IOException("Connection closed."));
+        }
+    }
+
+    /**
+     * Remove a member from the group and the pending sets
+     * @param address The address of the member
+     * @param bit The bit of the member
+     * @return The futures of the member that have not been completed yet
+     */
+    private List<CompletableFuture<Void>> removeMember(int address, int bit) {
+        List<CompletableFuture<Void>> failed = new ArrayList<>();
+
+        for (int seq = base; seq != this.seq; seq++) {
+            pending[seq & mask].clear(bit);
+
+            CompletableFuture<Void> future = deliveries[seq & mask] != null ? deliveries[seq & mask].recipients.remove(address) : null;
+
+            if (future != null && !future.isDone()) {
+                failed.add(future);
+            }
+        }
+
+        for (Delivery delivery : queuedDeliveries) {
+            CompletableFuture<Void> future = delivery.recipients.remove(address);
+
+            if (future != null && !future.isDone() && !failed.contains(future)) {
+                failed.add(future);
+            }
+        }
+
+        members.remove(address);
+        usedBits.clear(bit);
+        advance();
+
+        return failed;
+    }
+
+    /**
+     * Close the buffer, all pending deliveries fail
+     */
+    public void close() {
+        List<Integer> addresses;
+
+        synchronized (this) {
+            addresses = new ArrayList<>(members.keySet());
+        }
+
+        for (int address : addresses) {
+            removeMember(address);
+        }
+
+        synchronized (this) {
+            queue.clear();
+            queuedDeliveries.clear();
+        }
+    }
+
+    /**
+     * @param seq The sequence number of a packet
+     * @return Whether or not the packet has been sent and not acknowledged by all members yet
+     */
+    private boolean isInFlight(int seq) {
+        return seq - base >= 0 && seq - this.seq < 0 && !pending[seq & mask].isEmpty();
+    }
+
+    /**
+     * Get the bit of a member, new members get the lowest free bit
+     * @param address The address of the member
+     * @return The bit
+     */
+    private int getBit(int address) {
+        Integer bit = members.get(address);
+
+        if (bit == null) {
+            bit = usedBits.nextClearBit(0);
+            usedBits.set(bit);
+            members.put(address, bit);
+        }
+
+        return bit;
+    }
+
+    /**
+     * @return The round trip time estimator of the group
+     */
+    public RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
+    /**
+     * Packets of a single message with the futures of its recipients
+     */
+    private static class Delivery {
+        private Map<Integer, CompletableFuture<Void>> recipients;
+        private Map<Integer, Integer> remaining;
+
+        private Delivery(Map<Integer, CompletableFuture<Void>> recipients, int count) {
+            this.recipients = new HashMap<>(recipients);
+            this.remaining = new HashMap<>();
+
+            for (int address : recipients.keySet()) {
+                remaining.put(address, count);
+            }
+        }
+
+        /**
+         * Count an acknowledged packet for a recipient
+         * @param address The address of the recipient
+         * @return The future of the recipient if it acknowledged all packets, else null
+         */
+        private CompletableFuture<Void> acknowledge(int address) {
+            Integer left = remaining.get(address);
+
+            if (left == null) {
+                return null;
+            }
+
+            if (left > 1) {
+                remaining.put(address, left - 1);
+                return null;
+            }
+
+            remaining.remove(address);
+
+            return recipients.remove(address);
+        }
+    }
+}
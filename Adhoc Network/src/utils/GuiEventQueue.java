@@ -0,0 +1,233 @@
+package utils;
+
+import dataobjects.ChatMessage;
+
+import javax.swing.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Queue of GUI updates between the network threads and the event dispatch thread. <br>
+ * Adding an event never blocks. Chat messages and private chats are always kept, they were already delivered and acknowledged.
+ * Only the notifications are bounded, those that don't fit are dropped and reported. The events are handled on the event dispatch thread in batches,
+ * the rest of a full batch waits for the next round so the GUI gets to repaint in between. <br>
+ * Consecutive users entering or leaving the chat within a batch are combined into a single event.
+ *
+ * @author Frank
+ */
+public class GuiEventQueue {
+
+	/**
+	 * Type of a GUI event
+	 */
+	public enum Type {
+		MESSAGE, PRIVATE_CHAT, NOTIFY, ENTER, PART
+	}
+
+	/**
+	 * Event for the GUI, a chat message, a text or the names of the users that entered or left the chat
+	 */
+	public static class Event {
+		private final Type type;
+		private final ChatMessage message;
+		private final String text;
+		private final List<String> names;
+
+		/**
+		 * Constructor for a chat message
+		 * @param message The chat message
+		 */
+		public Event(ChatMessage message) {
+			this(Type.MESSAGE, message, null, null);
+		}
+
+		/**
+		 * Constructor for a text, for users entering or leaving the chat the text is the name of the user
+		 * @param type The type of the event
+		 * @param text The text
+		 */
+		public Event(Type type, String text) {
+			this(type, null, text, Collections.singletonList(text));
+		}
+
+		private Event(Type type, ChatMessage message, String text, List<String> names) {
+			this.type = type;
+			this.message = message;
+			this.text = text;
+			this.names = names;
+		}
+
+		/**
+		 * @return The type of the event
+		 */
+		public Type getType() {
+			return type;
+		}
+
+		/**
+		 * @return The chat message, or null if the event is not a chat message
+		 */
+		public ChatMessage getMessage() {
+			return message;
+		}
+
+		/**
+		 * @return The text, the first name for combined events
+		 */
+		public String getText() {
+			return text;
+		}
+
+		/**
+		 * @return The names of the users that entered or left the chat, in order
+		 */
+		public List<String> getNames() {
+			return names;
+		}
+
+		/**
+		 * @return Whether or not the event is a notification, which may be dropped
+		 */
+		private boolean isNotification() {
+			return type == Type.NOTIFY || type == Type.ENTER || type == Type.PART;
+		}
+
+		/**
+		 * @return Whether or not events of this type can be combined
+		 */
+		private boolean isCombinable() {
+			return type == Type.ENTER || type == Type.PART;
+		}
+
+		/**
+		 * Combine this event with the next event of the same type
+		 * @param next The next event
+		 * @return The combined event
+		 */
+		private Event combine(Event next) {
+			List<String> names = new ArrayList<>(this.names);
+			names.addAll(next.names);
+
+			return new Event(type, null, text, names);
+		}
+	}
+
+	private Queue<Event> events;
+	private int capacity;
+	private int batchSize;
+	private Consumer<Event> handler;
+
+	private AtomicBoolean scheduled;
+	private AtomicInteger notifications;
+	private AtomicInteger dropped;
+
+	/**
+	 * Constructor
+	 * @param capacity The maximum amount of notifications waiting to be handled, chat messages don't count
+	 * @param batchSize The maximum amount of events handled in one round on the event dispatch thread
+	 * @param handler The handler of the events, called on the event dispatch thread
+	 */
+	public GuiEventQueue(int capacity, int batchSize, Consumer<Event> handler) {
+		this.events = new ConcurrentLinkedQueue<>();
+		this.capacity = capacity;
+		this.batchSize = batchSize;
+		this.handler = handler;
+
+		scheduled = new AtomicBoolean();
+		notifications = new AtomicInteger();
+		dropped = new AtomicInteger();
+	}
+
+	/**
+	 * Add an event, a notification is dropped if too many notifications are waiting
+	 * @param event The event
+	 * @return true if the event was added, false if it was dropped
+	 */
+	public boolean offer(Event event) {
+		boolean added = true;
+
+		if (event.isNotification() && notifications.incrementAndGet() > capacity) {
+			notifications.decrementAndGet();
+			dropped.incrementAndGet();
+			added = false;
+		}
+
+		if (added) {
+			events.add(event);
+		}
+
+		// Only one round is scheduled at a time, the events added in the meantime are handled with it
+		if (scheduled.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(this::drain);
+		}
+
+		return added;
+	}
+
+	/**
+	 * Handle a batch of events on the event dispatch thread
+	 */
+	private void drain() {
+		List<Event> batch = new ArrayList<>(batchSize);
+		Event next;
+
+		while (batch.size() < batchSize && (next = events.poll()) != null) {
+			if (next.isNotification()) {
+				notifications.decrementAndGet();
+			}
+
+			batch.add(next);
+		}
+
+		Event pending = null;
+
+		for (Event event : batch) {
+			// Combine consecutive users entering or leaving, the order with the other events is kept
+			if (pending != null && pending.type == event.type && event.isCombinable()) {
+				pending = pending.combine(event);
+			} else {
+				if (pending != null) {
+					handle(pending);
+				}
+
+				pending = event;
+			}
+		}
+
+		if (pending != null) {
+			handle(pending);
+		}
+
+		int lost = dropped.getAndSet(0);
+
+		if (lost > 0) {
+			handle(new Event(Type.NOTIFY, lost + " notifications were dropped, the chat could not keep up."));
+		}
+
+		scheduled.set(false);
+
+		// The events that did not fit in this batch or were added while handling it get the next round
+		if (!events.isEmpty() && scheduled.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(this::drain);
+		}
+	}
+
+	/**
+	 * Pass an event to the handler
+	 * @param event The event
+	 */
+	private void handle(Event event) {
+		try {
+			handler.accept(event);
+		} catch (RuntimeException e) {
+			// A failing event must not stop the events after it
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package utils;
+
+/**
+ * Executor where every task has a key, tasks with the same key run one after the other in the order they were added. <br>
+ * Tasks with different keys may run in parallel.
+ *
+ * @author Frank
+ */
+public interface KeyedExecutor {
+
+    /**
+     * Run a task after the tasks with the same key that were added before it, the task is rejected if too many tasks are waiting
+     * @param key The key of the task
+     * @param task The task to run
+     * @return true if the task will run, false if it was rejected
+     */
+    boolean execute(int key, Runnable task);
+
+    /**
+     * Stop running tasks, the tasks that are waiting are dropped
+     */
+    void shutdown();
+}
@@ -0,0 +1,522 @@
+package utils;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Membership list of the chat room, kept up to date with a SWIM style protocol. <br>
+ * Every period one member is probed directly, and through a few other members if it doesn't answer, before it is suspected.
+ * Suspected members that don't refute the suspicion in time are declared dead. <br>
+ * Changes are not flooded but piggybacked on the probes and beacons, every change a limited amount of times, so they spread like an epidemic. <br>
+ * Every member has an incarnation number, only the member itself raises it, to refute a suspicion. A change is only taken over if it is newer:
+ * alive overrides suspect with a higher incarnation, suspect overrides alive with the same or a higher one, and dead overrides both. <br>
+ * A digest of the membership list is sent along, a member that differs gets the whole list in return. <br>
+ * Names are URL encoded in the changes, so a name with spaces or colons stays a single token.
+ *
+ * @author Frank
+ */
+public class Membership {
+    public static final int ALIVE = 0;
+    public static final int SUSPECT = 1;
+    public static final int DEAD = 2;
+
+    private static final char[] STATUS = {'A', 'S', 'D'};
+
+    private final int address;
+    private String name;
+    private long incarnation;
+
+    private Map<Integer, Member> members;
+    private Map<Integer, Integer> updates;
+
+    private List<Integer> probeOrder;
+    private int probeIndex;
+    private int probeTarget;
+    private int probeId;
+    private boolean probeAcked;
+
+    private Random random;
+
+    /**
+     * Constructor
+     * @param address Our own address
+     * @param name Our own name
+     */
+    public Membership(int address, String name) {
+        this.address = address;
+        this.name = name;
+
+        // Start at the current time, so a restarted client is newer than what the others remember of it
+        incarnation = System.currentTimeMillis() / 1000;
+
+        members = new HashMap<>();
+        updates = new HashMap<>();
+        probeOrder = new ArrayList<>();
+        probeIndex = 0;
+        probeTarget = -1;
+        probeId = 0;
+        probeAcked = true;
+        random = new Random();
+    }
+
+    /**
+     * Apply the changes of a message
+     * @param tokens The tokens of the message, tokens that are not changes are skipped
+     * @param offset The index of the first token that may be a change
+     * @return The members that joined (alive) or were declared dead by the changes
+     */
+    public synchronized List<Member> apply(String[] tokens, int offset) {
+        List<Member> changed = new ArrayList<>();
+
+        for (int n = offset; n < tokens.length; n++) {
+            String[] parts = tokens[n].split(":", 3);
+            int status = parts[0].isEmpty() ? -1 : new String(STATUS).indexOf(parts[0].charAt(0));
+
+            if (parts.length != 3 || status == -1) {
+                continue;
+            }
+
+            try {
+                Member member = apply(Integer.parseInt(parts[0].substring(1)), status, Long.parseLong(parts[1]), decodeName(parts[2]));
+
+                if (member != null) {
+                    changed.add(member);
+                }
+            } catch (IllegalArgumentException e) {
+                // Also thrown for malformed names
+                continue;
+            }
+        }
+
+        return changed;
+    }
+
+    /**
+     * Apply a change
+     * @param address The address of the member
+     * @param status The new status
+     * @param incarnation The incarnation of the member the change is about
+     * @param name The name of the member
+     * @return The member if it joined or was declared dead, else null
+     */
+    private Member apply(int address, int status, long incarnation, String name) {
+        // Refute a suspicion of ourselves by starting a new incarnation
+        if (address == this.address) {
+            if (status != ALIVE && incarnation >= this.incarnation) {
+                this.incarnation = incarnation + 1;
+            }
+
+            return null;
+        }
+
+        Member member = members.get(address);
+
+        if (member == null) {
+            // Members we don't know of yet join, unless they are already dead
+            if (status == DEAD) {
+                return null;
+            }
+
+            member = new Member(address, name, incarnation, status);
+            members.put(address, member);
+            probeOrder.add(random.nextInt(probeOrder.size() + 1), address);
+            updates.put(address, 0);
+
+            return member;
+        }
+
+        boolean newer;
+
+        if (member.status == DEAD) {
+            // A dead member can only come back with a new incarnation
+            newer = status == ALIVE && incarnation > member.incarnation;
+        } else if (status == ALIVE) {
+            newer = incarnation > member.incarnation;
+        } else if (status == SUSPECT) {
+            newer = incarnation > member.incarnation || incarnation == member.incarnation && member.status == ALIVE;
+        } else {
+            newer = true;
+        }
+
+        if (!newer) {
+            return null;
+        }
+
+        boolean joined = member.status == DEAD;
+
+        setStatus(member, status, incarnation);
+        member.name = name;
+
+        return joined || status == DEAD ? member : null;
+    }
+
+    /**
+     * Add a member we heard from directly rather than through the membership protocol, so it is probed and times out like the others. <br>
+     * Its incarnation is not known, so it starts at 0 and the first change from the member itself overrides it. The addition is not spread.
+     * @param address The address of the member
+     * @param name The name of the member
+     * @return true if the member was added, false if it was already known
+     */
+    public synchronized boolean add(int address, String name) {
+        if (address == this.address || members.containsKey(address)) {
+            return false;
+        }
+
+        members.put(address, new Member(address, name, 0, ALIVE));
+        probeOrder.add(random.nextInt(probeOrder.size() + 1), address);
+
+        return true;
+    }
+
+    /**
+     * Declare a member dead that announced it is leaving
+     * @param address The address of the member
+     * @param incarnation The incarnation the member left in, an older one is a leave of a previous run
+     * @return The member, or null if it is not a member or already dead
+     */
+    public synchronized Member leave(int address, long incarnation) {
+        Member member = members.get(address);
+
+        if (member == null || member.status == DEAD || incarnation < member.incarnation) {
+            return null;
+        }
+
+        setStatus(member, DEAD, incarnation);
+
+        return member;
+    }
+
+    /**
+     * Start the next probe period: the member of the previous probe is suspected if it didn't answer, and suspected members that didn't refute in time are declared dead. <br>
+     * The next member to probe is picked round robin, in an order that is shuffled every round.
+     * @param now The current time in milliseconds
+     * @return The members that were declared dead
+     */
+    public synchronized List<Member> tick(long now) {
+        List<Member> dead = new ArrayList<>();
+
+        if (!probeAcked && members.containsKey(probeTarget) && members.get(probeTarget).status == ALIVE) {
+            Member member = members.get(probeTarget);
+            setStatus(member, SUSPECT, member.incarnation);
+        }
+
+        Iterator<Member> iterator = members.values().iterator();
+
+        while (iterator.hasNext()) {
+            Member member = iterator.next();
+
+            if (member.status == SUSPECT && now - member.changed > getSuspicionTimeout()) {
+                setStatus(member, DEAD, member.incarnation);
+                dead.add(member);
+            } else if (member.status == DEAD && now - member.changed > Protocol.DEAD_RETENTION) {
+                // Forget dead members after a while, they can join again as new members
+                iterator.remove();
+                updates.remove(member.address);
+                int index = probeOrder.indexOf(member.address);
+                probeOrder.remove(index);
+
+                if (index < probeIndex) {
+                    probeIndex--;
+                }
+            }
+        }
+
+        // Pick the next member that is not dead, the order is shuffled again once every member had its turn
+        probeTarget = -1;
+        probeAcked = true;
+
+        for (int n = 0; n < probeOrder.size() && probeTarget == -1; n++) {
+            if (probeIndex >= probeOrder.size()) {
+                Collections.shuffle(probeOrder, random);
+                probeIndex = 0;
+            }
+
+            int address = probeOrder.get(probeIndex++);
+
+            if (members.get(address).status != DEAD) {
+                probeTarget = address;
+                probeAcked = false;
+                probeId++;
+            }
+        }
+
+        return dead;
+    }
+
+    /**
+     * @return The member to probe this period, or -1 if there is none
+     */
+    public synchronized int getProbeTarget() {
+        return probeTarget;
+    }
+
+    /**
+     * @return The id of the probe of this period
+     */
+    public synchronized int getProbeId() {
+        return probeId;
+    }
+
+    /**
+     * @param id The id of a probe
+     * @return Whether or not the probe was answered, or is not the current probe anymore
+     */
+    public synchronized boolean isAcked(int id) {
+        return id != probeId || probeAcked;
+    }
+
+    /**
+     * Handle the answer to a probe
+     * @param member The member that answered
+     * @param id The id of the probe
+     */
+    public synchronized void ack(int member, int id) {
+        if (member == probeTarget && id == probeId) {
+            probeAcked = true;
+        }
+    }
+
+    /**
+     * Pick members to probe a member that didn't answer through
+     * @param target The member that didn't answer
+     * @param count The amount of members to pick
+     * @return The picked members, fewer if there are not enough
+     */
+    public synchronized List<Integer> getRelays(int target, int count) {
+        List<Integer> relays = new ArrayList<>();
+
+        for (Member member : members.values()) {
+            if (member.address != target && member.status == ALIVE) {
+                relays.add(member.address);
+            }
+        }
+
+        Collections.shuffle(relays, random);
+
+        return relays.subList(0, Math.min(count, relays.size()));
+    }
+
+    /**
+     * Append our own state and the changes that were piggybacked the least so far to a message, each change is piggybacked a limited amount of times
+     * @param message The message
+     * @param room The amount of bytes the changes may take
+     */
+    public synchronized void appendUpdates(StringBuilder message, int room) {
+        room = append(message, room, getToken(address, ALIVE, incarnation, name));
+
+        List<Map.Entry<Integer, Integer>> pending = new ArrayList<>(updates.entrySet());
+        pending.sort(Comparator.comparingInt(Map.Entry::getValue));
+
+        int limit = Protocol.DISSEMINATION_MULTIPLIER * (32 - Integer.numberOfLeadingZeros(members.size() + 1));
+
+        for (Map.Entry<Integer, Integer> update : pending) {
+            Member member = members.get(update.getKey());
+            int left = append(message, room, getToken(member.address, member.status, member.incarnation, member.name));
+
+            if (left == room) {
+                break;
+            }
+
+            room = left;
+
+            if (update.getValue() + 1 >= limit) {
+                updates.remove(update.getKey());
+            } else {
+                updates.put(update.getKey(), update.getValue() + 1);
+            }
+        }
+    }
+
+    /**
+     * Append our own state and the state of the members that are not dead to a message, a random part of them if they don't all fit
+     * @param message The message
+     * @param room The amount of bytes the roster may take
+     */
+    public synchronized void appendRoster(StringBuilder message, int room) {
+        room = append(message, room, getToken(address, ALIVE, incarnation, name));
+
+        List<Member> roster = new ArrayList<>(members.values());
+        Collections.shuffle(roster, random);
+
+        for (Member member : roster) {
+            if (member.status != DEAD) {
+                room = append(message, room, getToken(member.address, member.status, member.incarnation, member.name));
+            }
+        }
+    }
+
+    /**
+     * @return A digest of the members that are not dead and their incarnations, the same for every member that has the same list
+     */
+    public synchronized int getDigest() {
+        int digest = mix(address, incarnation, ALIVE);
+
+        for (Member member : members.values()) {
+            if (member.status != DEAD) {
+                digest ^= mix(member.address, member.incarnation, member.status);
+            }
+        }
+
+        return digest;
+    }
+
+    /**
+     * @return The amount of members that are not dead, not counting ourselves
+     */
+    public synchronized int size() {
+        int size = 0;
+
+        for (Member member : members.values()) {
+            if (member.status != DEAD) {
+                size++;
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * @param address The address of a member
+     * @return The status of the member, or -1 if it is unknown
+     */
+    public synchronized int getStatus(int address) {
+        Member member = members.get(address);
+
+        return member != null ? member.status : -1;
+    }
+
+    /**
+     * Set our own name
+     * @param name The name
+     */
+    public synchronized void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return Our own incarnation number
+     */
+    public synchronized long getIncarnation() {
+        return incarnation;
+    }
+
+    /**
+     * Change the status of a member and spread the change
+     */
+    private void setStatus(Member member, int status, long incarnation) {
+        member.status = status;
+        member.incarnation = incarnation;
+        member.changed = System.currentTimeMillis();
+        updates.put(member.address, 0);
+    }
+
+    /**
+     * @return The time in milliseconds a suspected member gets to refute, it grows with the log of the size of the room since the suspicion takes longer to reach everyone
+     */
+    private long getSuspicionTimeout() {
+        return Protocol.SUSPICION_MULTIPLIER * (32 - Integer.numberOfLeadingZeros(members.size() + 1)) * Protocol.PROBE_PERIOD;
+    }
+
+    /**
+     * Append a token to a message if it fits
+     * @return The room that is left
+     */
+    private static int append(StringBuilder message, int room, String token) {
+        int length = token.getBytes(StandardCharsets.UTF_8).length + 1;
+
+        if (length > room) {
+            return room;
+        }
+
+        message.append(' ').append(token);
+
+        return room - length;
+    }
+
+    /**
+     * @return The token of a change: status, address, incarnation and encoded name
+     */
+    private static String getToken(int address, int status, long incarnation, String name) {
+        return STATUS[status] + Integer.toString(address) + ":" + incarnation + ":" + encodeName(name);
+    }
+
+    /**
+     * Encode a name so it is a single token without colons, it is also used for the name in the header of a beacon
+     * @param name The name, may be null
+     * @return The encoded name
+     */
+    public static String encodeName(String name) {
+        try {
+            return URLEncoder.encode(name != null ? name : "", "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Decode a name
+     * @param name The encoded name
+     * @return The name
+     * @throws IllegalArgumentException If the name is malformed
+     */
+    public static String decodeName(String name) {
+        try {
+            return URLDecoder.decode(name, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Hash a member, so the digest changes whatever changes about a member
+     */
+    private static int mix(int address, long incarnation, int status) {
+        long hash = ((long) address << 32 ^ incarnation * 31 + status) * 0x9E3779B97F4A7C15L;
+
+        return (int) (hash ^ hash >>> 32);
+    }
+
+    /**
+     * Member of the chat room
+     */
+    public static class Member {
+        private final int address;
+        private String name;
+        private long incarnation;
+        private int status;
+        private long changed;
+
+        private Member(int address, String name, long incarnation, int status) {
+            this.address = address;
+            this.name = name;
+            this.incarnation = incarnation;
+            this.status = status;
+            this.changed = System.currentTimeMillis();
+        }
+
+        /**
+         * @return The address of the member
+         */
+        public int getAddress() {
+            return address;
+        }
+
+        /**
+         * @return The name of the member
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return The status of the member
+         */
+        public int getStatus() {
+            return status;
+        }
+    }
+}
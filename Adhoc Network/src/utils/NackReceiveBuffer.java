@@ -0,0 +1,184 @@
+package utils;
+
+import dataobjects.Packet;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Receive buffer for group addressed packets that are repaired on request (NACK). <br>
+ * Detects the gaps in the sequence numbers of a source and decides when to ask for them: <br>
+ * requests are delayed by a random time and skipped if another member asked for the same packets first, so a lost packet causes few requests however large the group is.
+ *
+ * @author Frank
+ */
+public class NackReceiveBuffer {
+    /* Received packets after the first missing one, slot seq & mask */
+    private final int mask;
+    private boolean[] received;
+
+    private int expected;
+    private int next;
+    private boolean started;
+
+    private boolean nackScheduled;
+    private boolean suppressed;
+    private int attempts;
+    private int attemptsFor;
+
+    /**
+     * Constructor
+     * @param size The maximum distance between the first missing packet and the newest packet
+     */
+    public NackReceiveBuffer(int size) {
+        int capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+        mask = capacity - 1;
+        received = new boolean[capacity];
+        started = false;
+    }
+
+    /**
+     * Add a packet to the receive buffer
+     * @param packet The packet to add
+     * @return true if the packet is new, false if it was a duplicate or too old
+     */
+    public synchronized boolean addPacket(Packet packet) {
+        int seq = packet.getSeq();
+
+        // Members that join start at the first packet they see
+        if (!started || seq - expected > mask) {
+            restart(seq);
+        }
+
+        if (seq - expected < 0 || received[seq & mask]) {
+            return false;
+        }
+
+        received[seq & mask] = true;
+
+        if (seq - next >= 0) {
+            next = seq + 1;
+        }
+
+        // Move past the packets that were received in order
+        while (received[expected & mask] && expected != next) {
+            received[expected & mask] = false;
+            expected++;
+        }
+
+        return true;
+    }
+
+    /**
+     * Start over at a sequence number
+     * @param seq The sequence number
+     */
+    private void restart(int seq) {
+        Arrays.fill(received, false);
+        expected = seq;
+        next = seq;
+        started = true;
+    }
+
+    /**
+     * Let the buffer know which sequence number the source will use next, so lost packets at the end of the stream are noticed
+     * @param seq The next sequence number of the source
+     */
+    public synchronized void setNext(int seq) {
+        if (started && seq - next > 0 && seq - expected <= mask) {
+            next = seq;
+        }
+    }
+
+    /**
+     * @return Whether or not packets are missing
+     */
+    public synchronized boolean hasGaps() {
+        return started && expected != next;
+    }
+
+    /**
+     * Claim the request timer
+     * @return true if packets are missing and no request was scheduled yet, the caller should schedule one
+     */
+    public synchronized boolean scheduleNack() {
+        if (nackScheduled || !hasGaps()) {
+            return false;
+        }
+
+        nackScheduled = true;
+
+        return true;
+    }
+
+    /**
+     * Take the request when its timer expires. <br>
+     * Nothing is requested if another member asked for the same packets in the meantime, and the first missing packet is given up on after Protocol.NACK_MAX_ATTEMPTS requests.
+     * @return The bitmap of missing packets to request, bit n is set if packet getFirstMissing() + n is missing, or null if nothing should be requested now
+     */
+    public synchronized byte[] takeNack() {
+        nackScheduled = false;
+
+        if (!hasGaps()) {
+            return null;
+        }
+
+        if (suppressed) {
+            suppressed = false;
+            return null;
+        }
+
+        // Count the requests for the same first missing packet
+        if (attemptsFor != expected) {
+            attemptsFor = expected;
+            attempts = 0;
+        }
+
+        if (++attempts > Protocol.NACK_MAX_ATTEMPTS) {
+            skip();
+            return null;
+        }
+
+        byte[] missing = new byte[(next - expected + Byte.SIZE - 1) / Byte.SIZE];
+
+        for (int n = 0; n < next - expected; n++) {
+            if (!received[(expected + n) & mask]) {
+                missing[n / Byte.SIZE] |= 1 << (n % Byte.SIZE);
+            }
+        }
+
+        return missing;
+    }
+
+    /**
+     * Handle a request of another member for packets of the same source, our own request is skipped if it asks for our first missing packet
+     * @param first The sequence number of bit 0 of the request
+     * @param missing The bitmap of the request
+     */
+    public synchronized void suppress(int first, ByteBuffer missing) {
+        int n = expected - first;
+
+        if (hasGaps() && n >= 0 && n < missing.remaining() * Byte.SIZE && (missing.get(missing.position() + n / Byte.SIZE) & (1 << (n % Byte.SIZE))) != 0) {
+            suppressed = true;
+        }
+    }
+
+    /**
+     * Give up on the first missing packet
+     */
+    private void skip() {
+        expected++;
+
+        while (received[expected & mask] && expected != next) {
+            received[expected & mask] = false;
+            expected++;
+        }
+    }
+
+    /**
+     * @return The sequence number of the first missing packet
+     */
+    public synchronized int getFirstMissing() {
+        return expected;
+    }
+}
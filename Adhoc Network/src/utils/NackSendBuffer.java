@@ -0,0 +1,198 @@
+package utils;
+
+import dataobjects.Packet;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Retransmission buffer for group addressed packets that are repaired on request (NACK) instead of being acknowledged. <br>
+ * Packets are kept in a circular array indexed by sequence number, so the buffer ages out on size, and packets older than the retention time are not repaired either. <br>
+ * Members never confirm a message, so its delivery completes once all of its packets aged out and no member was still asking for them.
+ *
+ * @author Frank
+ */
+public class NackSendBuffer {
+    private final long RETENTION;
+
+    private final int mask;
+    private Packet[] packets;
+    private Delivery[] deliveries;
+    private long[] sent;
+    private long[] repaired;
+
+    private int oldest;
+    private int seq;
+
+    /**
+     * Constructor
+     * @param size The maximum amount of packets kept for repairs
+     * @param retention The time in milliseconds after which a packet is not repaired anymore
+     */
+    public NackSendBuffer(int size, long retention) {
+        int capacity = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+        mask = capacity - 1;
+        packets = new Packet[capacity];
+        deliveries = new Delivery[capacity];
+        sent = new long[capacity];
+        repaired = new long[capacity];
+        RETENTION = retention;
+        oldest = 0;
+        seq = 0;
+    }
+
+    /**
+     * Give the packets of a message the next sequence numbers and keep them for repairs, replacing the oldest packets if the buffer is full
+     * @param delivery Future that is completed once the packets aged out, may be null
+     * @param packets The packets of the message
+     */
+    public void addPackets(CompletableFuture<Void> delivery, Packet... packets) {
+        List<Delivery> finished = new ArrayList<>();
+        long now = System.currentTimeMillis();
+
+        synchronized (this) {
+            Delivery shared = delivery != null ? new Delivery(delivery, packets.length) : null;
+
+            for (Packet packet : packets) {
+                int index = seq & mask;
+
+                // The packet in the slot ages out early
+                if (seq - oldest >= this.packets.length) {
+                    ageOut(oldest++, finished);
+                }
+
+                packet.setSeq(seq);
+                this.packets[index] = packet;
+                deliveries[index] = shared;
+                sent[index] = now;
+                repaired[index] = 0;
+                seq++;
+            }
+        }
+
+        finish(finished, now);
+    }
+
+    /**
+     * Get a packet to repair a loss. Members often miss the same packet, so a packet is repaired at most once per interval.
+     * @param seq The sequence number of the lost packet
+     * @param now The current time in milliseconds
+     * @return The packet to send again, or null if it aged out or was repaired recently
+     */
+    public synchronized Packet getRepair(int seq, long now) {
+        int index = seq & mask;
+
+        // The packet has to be sent and still be in the buffer
+        if (seq - oldest < 0 || seq - this.seq >= 0 || packets[index] == null) {
+            return null;
+        }
+
+        // The request keeps the delivery of the message from completing for a while, the member may still be missing it
+        if (deliveries[index] != null) {
+            deliveries[index].requested = now;
+        }
+
+        if (now - sent[index] > RETENTION || now - repaired[index] < Protocol.NACK_REPAIR_INTERVAL) {
+            return null;
+        }
+
+        repaired[index] = now;
+
+        return packets[index];
+    }
+
+    /**
+     * Age out the packets that are older than the retention time, and complete the deliveries of the messages that aged out completely
+     * @param now The current time in milliseconds
+     */
+    public void expire(long now) {
+        List<Delivery> finished = new ArrayList<>();
+
+        synchronized (this) {
+            while (oldest != seq && now - sent[oldest & mask] > RETENTION) {
+                ageOut(oldest++, finished);
+            }
+        }
+
+        finish(finished, now);
+    }
+
+    /**
+     * Close the buffer, the deliveries of the packets that did not age out yet fail
+     */
+    public void close() {
+        List<CompletableFuture<Void>> failed = new ArrayList<>();
+
+        synchronized (this) {
+            for (; oldest != seq; oldest++) {
+                Delivery delivery = deliveries[oldest & mask];
+
+                if (delivery != null && !failed.contains(delivery.future)) {
+                    failed.add(delivery.future);
+                }
+
+                packets[oldest & mask] = null;
+                deliveries[oldest & mask] = null;
+            }
+        }
+
+        for (CompletableFuture<Void> delivery : failed) {
+            delivery.completeExceptionally(new IOException("Connection closed."));
+        }
+    }
+
+    /**
+     * @return The sequence number of the next packet, members compare it with what they received to find lost packets at the end of the stream
+     */
+    public synchronized int getSeq() {
+        return seq;
+    }
+
+    /**
+     * Remove a packet from the buffer
+     * @param seq The sequence number of the packet
+     * @param finished The deliveries whose last packet aged out are added to this list
+     */
+    private void ageOut(int seq, List<Delivery> finished) {
+        int index = seq & mask;
+        Delivery delivery = deliveries[index];
+        packets[index] = null;
+        deliveries[index] = null;
+
+        if (delivery != null && --delivery.remaining == 0) {
+            finished.add(delivery);
+        }
+    }
+
+    /**
+     * Complete the deliveries of messages that aged out, outside of the lock since their callbacks run on this thread. <br>
+     * A message that members were still asking for may not have reached them, so its delivery fails.
+     * @param finished The deliveries to complete
+     * @param now The current time in milliseconds
+     */
+    private static void finish(List<Delivery> finished, long now) {
+        for (Delivery delivery : finished) {
+            if (now - delivery.requested < Protocol.NACK_RETRY) {
+                delivery.future.completeExceptionally(new IOException("Members were still requesting the message when it aged out."));
+            } else {
+                delivery.future.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Future shared by the packets of one message, with the time of the last repair request for any of them
+     */
+    private static class Delivery {
+        private CompletableFuture<Void> future;
+        private int remaining;
+        private long requested;
+
+        private Delivery(CompletableFuture<Void> future, int remaining) {
+            this.future = future;
+            this.remaining = remaining;
+        }
+    }
+}
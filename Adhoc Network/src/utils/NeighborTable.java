@@ -0,0 +1,261 @@
+package utils;
+
+import java.util.*;
+
+/**
+ * Neighbor table with link quality metrics, learned from the 'alive' beacons every node sends its neighbors. <br>
+ * Every peer's hop distance is recorded, the peers whose beacons reach us directly are our neighbors. <br>
+ * The delivery ratio of a neighbor is the fraction of its recent beacons that reached us directly, beacons that are overdue count as lost. <br>
+ * Every beacon reports the delivery ratios its source measured for its own neighbors, which gives us the ratio in the other direction
+ * and the neighbors of our neighbors. Together the ratios give the expected transmission count (ETX) of a link: 1 / (forward ratio * reverse ratio).
+ *
+ * @author Frank
+ */
+public class NeighborTable {
+    private final int address;
+    private final int WINDOW;
+
+    private Map<Integer, Peer> peers;
+
+    /**
+     * Constructor
+     * @param address Our own address, to find our delivery ratio in the reports of our neighbors
+     * @param window The amount of recent beacons the delivery ratio is measured over, at most 64
+     */
+    public NeighborTable(int address, int window) {
+        this.address = address;
+        WINDOW = Math.max(1, Math.min(window, Long.SIZE));
+        peers = new HashMap<>();
+    }
+
+    /**
+     * Add a received copy of a beacon
+     * @param source The source of the beacon
+     * @param seq The sequence number of the beacon, sources number their beacons one by one
+     * @param previousHop The node that sent us the copy, the copy came directly from the source if it is the source itself
+     * @param hops The hop count of the copy
+     */
+    public synchronized void addBeacon(int source, int seq, int previousHop, int hops) {
+        long now = System.currentTimeMillis();
+        int distance = Protocol.MAXHOPS - hops + 1;
+        Peer peer = peers.get(source);
+
+        // A jump back means the source started over
+        if (peer == null || seq - peer.highest < -WINDOW) {
+            peer = new Peer(seq, distance, now);
+            peers.put(source, peer);
+        }
+
+        if (seq - peer.highest > 0) {
+            int shift = seq - peer.highest;
+            peer.received = shift < Long.SIZE ? peer.received << shift : 0;
+            peer.highest = seq;
+            peer.heard = now;
+            peer.distance = distance;
+        } else if (seq == peer.highest) {
+            peer.distance = Math.min(peer.distance, distance);
+        }
+
+        if (previousHop == source && peer.highest - seq < Long.SIZE) {
+            peer.received |= 1L << (peer.highest - seq);
+            peer.direct = now;
+        }
+    }
+
+    /**
+     * Add the delivery ratios a peer reported in its beacon
+     * @param source The source of the beacon
+     * @param entries The report entries, 'address:percentage' for every neighbor of the source
+     */
+    public synchronized void addReport(int source, String[] entries) {
+        Peer peer = peers.get(source);
+
+        if (peer == null) {
+            return;
+        }
+
+        Map<Integer, Double> report = new HashMap<>();
+
+        for (String entry : entries) {
+            String[] parts = entry.split(":");
+
+            // Skip anything that is not an entry, like the rest of a name with spaces in it
+            if (parts.length == 2) {
+                try {
+                    report.put(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]) / 100.0);
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+            }
+        }
+
+        peer.report = report;
+    }
+
+    /**
+     * @return The report for our own beacon, ' address:percentage' for every neighbor, best links first
+     */
+    public synchronized String getReport() {
+        long now = System.currentTimeMillis();
+        List<Map.Entry<Integer, Double>> ratios = new ArrayList<>();
+
+        for (Map.Entry<Integer, Peer> peer : peers.entrySet()) {
+            double ratio = getDeliveryRatio(peer.getValue(), now);
+
+            if (ratio > 0) {
+                ratios.add(new AbstractMap.SimpleEntry<>(peer.getKey(), ratio));
+            }
+        }
+
+        ratios.sort((a, b) -> Double.compare(b.getValue(), a.getValue()));
+
+        StringBuilder report = new StringBuilder();
+
+        for (Map.Entry<Integer, Double> ratio : ratios.subList(0, Math.min(ratios.size(), Protocol.MAX_REPORTED_NEIGHBORS))) {
+            report.append(' ').append(ratio.getKey()).append(':').append(Math.round(ratio.getValue() * 100));
+        }
+
+        return report.toString();
+    }
+
+    /**
+     * @return The addresses of the peers whose beacons reach us directly
+     */
+    public synchronized Set<Integer> getNeighbors() {
+        long now = System.currentTimeMillis();
+        Set<Integer> neighbors = new HashSet<>();
+
+        for (Map.Entry<Integer, Peer> peer : peers.entrySet()) {
+            if (getDeliveryRatio(peer.getValue(), now) > 0) {
+                neighbors.add(peer.getKey());
+            }
+        }
+
+        return neighbors;
+    }
+
+    /**
+     * @param address The address of a peer
+     * @return Whether or not the beacons of the peer reach us directly
+     */
+    public synchronized boolean isNeighbor(int address) {
+        return getDeliveryRatio(address) > 0;
+    }
+
+    /**
+     * Get the neighbors of a neighbor, as reported in its last beacon
+     * @param address The address of the neighbor
+     * @return The neighbors of the neighbor, empty if it did not report any
+     */
+    public synchronized Set<Integer> getNeighborsOf(int address) {
+        Peer peer = peers.get(address);
+
+        return peer != null ? new HashSet<>(peer.report.keySet()) : new HashSet<>();
+    }
+
+    /**
+     * Get the hop distance of a peer, the amount of hops the shortest copy of its last beacon travelled
+     * @param address The address of the peer
+     * @return The hop distance, or -1 if we did not hear from the peer recently
+     */
+    public synchronized int getDistance(int address) {
+        Peer peer = peers.get(address);
+
+        if (peer == null || System.currentTimeMillis() - peer.heard > Protocol.INACTIVITY_LIMIT) {
+            return -1;
+        }
+
+        return peer.distance;
+    }
+
+    /**
+     * Get the delivery ratio from a neighbor to us
+     * @param address The address of the neighbor
+     * @return The fraction of its recent beacons that reached us directly, between 0 and 1
+     */
+    public synchronized double getDeliveryRatio(int address) {
+        Peer peer = peers.get(address);
+
+        return peer != null ? getDeliveryRatio(peer, System.currentTimeMillis()) : 0;
+    }
+
+    /**
+     * Get the delivery ratio from us to a neighbor, as reported by the neighbor
+     * @param address The address of the neighbor
+     * @return The fraction of our recent beacons that reached the neighbor directly, or the ratio in the other direction if the neighbor did not report it
+     */
+    public synchronized double getReverseDeliveryRatio(int address) {
+        Peer peer = peers.get(address);
+
+        if (peer == null) {
+            return 0;
+        }
+
+        // Reports only list the best links, assume a link that is left out is as good in both directions
+        Double ratio = peer.report.get(this.address);
+
+        return ratio != null ? ratio : getDeliveryRatio(peer, System.currentTimeMillis());
+    }
+
+    /**
+     * Get the expected transmission count of the link with a neighbor, the expected amount of transmissions for a packet and its acknowledgement to get through
+     * @param address The address of the neighbor
+     * @return The expected transmission count, at least 1, or Double.POSITIVE_INFINITY if the peer is not a neighbor
+     */
+    public synchronized double getEtx(int address) {
+        double ratio = getDeliveryRatio(address) * getReverseDeliveryRatio(address);
+
+        return ratio > 0 ? 1 / ratio : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Forget a peer. Used when a user leaves.
+     * @param address The address of the peer
+     */
+    public synchronized void remove(int address) {
+        peers.remove(address);
+    }
+
+    /**
+     * Calculate the delivery ratio of a peer, the beacons that should have arrived by now but didn't count as lost
+     * @param peer The peer
+     * @param now The current time in milliseconds
+     * @return The delivery ratio
+     */
+    private double getDeliveryRatio(Peer peer, long now) {
+        // A beacon is overdue once it is half a period late
+        long missed = Math.max(0, (now - peer.heard - Protocol.ALIVE_RATE / 2) / Protocol.ALIVE_RATE);
+
+        if (peer.direct == 0 || missed >= WINDOW) {
+            return 0;
+        }
+
+        // New peers are measured over the beacons they sent so far
+        long expected = Math.min(WINDOW, peer.highest - peer.first + 1 + missed);
+        long received = Long.bitCount((peer.received << missed) & (-1L >>> (Long.SIZE - WINDOW)));
+
+        return (double) received / expected;
+    }
+
+    /**
+     * Beacon history and report of a peer
+     */
+    private static class Peer {
+        private final int first;
+        private int highest;
+        private long received;
+        private long heard;
+        private long direct;
+        private int distance;
+        private Map<Integer, Double> report;
+
+        private Peer(int seq, int distance, long heard) {
+            this.first = seq;
+            this.highest = seq;
+            this.received = 0;
+            this.heard = heard;
+            this.distance = distance;
+            this.report = new HashMap<>();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package utils;
+
+import dataobjects.Packet;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Bounded pool of full size packets, used to recycle receive buffers
+ *
+ * @author Frank
+ */
+public class PacketPool {
+    private BlockingQueue<Packet> pool;
+
+    /**
+     * Constructor
+     * @param capacity The maximum amount of idle packets kept in the pool
+     */
+    public PacketPool(int capacity) {
+        pool = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Take a packet from the pool, a new packet is created if the pool is empty
+     * @return A packet of Packet.SIZE bytes
+     */
+    public Packet acquire() {
+        Packet packet = pool.poll();
+
+        return packet != null ? packet : new Packet(Packet.SIZE);
+    }
+
+    /**
+     * Return a packet to the pool, the packet is dropped if the pool is full
+     * @param packet The packet to return
+     */
+    public void release(Packet packet) {
+        if (packet.getData().length == Packet.SIZE) {
+            pool.offer(packet);
+        }
+    }
+}
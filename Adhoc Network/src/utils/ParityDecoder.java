@@ -0,0 +1,194 @@
+package utils;
+
+import dataobjects.Packet;
+
+import java.util.Arrays;
+
+/**
+ * XOR parity decoder for forward error correction. <br>
+ * Keeps the protected bytes of the recently received data packets of a source, so a single lost packet of a group can be rebuilt once its parity packet arrives. <br>
+ * Also measures the loss rate of the source from the gaps in its sequence numbers, before any recovery, to choose the group size the source should use.
+ *
+ * @author Frank
+ */
+public class ParityDecoder {
+    /* Weight of a new sample in the loss rate average */
+    private static final double LOSS_GAIN = 1.0 / 32;
+
+    /* Received data packets, slot seq & mask */
+    private final int mask;
+    private byte[][] packets;
+    private int[] lengths;
+    private int[] seqs;
+    private boolean[] filled;
+
+    private int highest;
+    private boolean started;
+    private double lossRate;
+    private int requestedGroupSize;
+
+    /**
+     * Constructor
+     */
+    public ParityDecoder() {
+        int capacity = Integer.highestOneBit(Protocol.FEC_MAX_GROUP) << 1;
+        mask = capacity - 1;
+        packets = new byte[capacity][Packet.MAX_PARITY_SIZE];
+        lengths = new int[capacity];
+        seqs = new int[capacity];
+        filled = new boolean[capacity];
+        started = false;
+        lossRate = 0;
+        requestedGroupSize = 0;
+    }
+
+    /**
+     * Add a received data packet
+     * @param packet The packet to add
+     */
+    public synchronized void addPacket(Packet packet) {
+        int seq = packet.getSeq();
+        int length = packet.getLength() - Packet.PARITY_OFFSET;
+
+        if (length > Packet.MAX_PARITY_SIZE) {
+            return;
+        }
+
+        updateLossRate(seq);
+
+        // Keep a copy of the protected bytes, the packet itself is reused
+        int index = seq & mask;
+        Arrays.fill(packets[index], 0, Math.max(lengths[index], length), (byte) 0);
+        packet.xorProtected(packets[index]);
+        lengths[index] = length;
+        seqs[index] = seq;
+        filled[index] = true;
+    }
+
+    /**
+     * Add a received parity packet
+     * @param parity The parity packet
+     * @return The rebuilt packet if exactly one data packet of the group was lost, else null
+     */
+    public synchronized Packet addParity(Packet parity) {
+        int first = parity.getSeq();
+        int count = parity.getParityCount();
+        int length = parity.getParityLength();
+
+        if (count < 1 || count > mask + 1 || length > Packet.MAX_PARITY_SIZE) {
+            return null;
+        }
+
+        int missing = -1;
+
+        for (int seq = first; seq != first + count; seq++) {
+            if (!isReceived(seq)) {
+                // More than one lost packet can't be rebuilt
+                if (missing != -1) {
+                    return null;
+                }
+
+                missing = seq;
+            }
+        }
+
+        if (missing == -1) {
+            return null;
+        }
+
+        // XOR the parity with the packets that did arrive, what is left is the lost packet
+        byte[] bytes = new byte[length];
+        parity.xorParity(bytes);
+
+        for (int seq = first; seq != first + count; seq++) {
+            if (seq != missing) {
+                byte[] received = packets[seq & mask];
+
+                for (int n = 0; n < Math.min(length, lengths[seq & mask]); n++) {
+                    bytes[n] ^= received[n];
+                }
+            }
+        }
+
+        Packet packet = new Packet(Packet.SIZE);
+        packet.setSource(parity.getSource());
+        packet.setDestination(parity.getDestination());
+        packet.setProtected(bytes, length);
+        packet.setHops((short) 1);
+
+        // Check that the result is a packet of the group
+        if (packet.getSeq() != missing || !packet.hasValidLength(Packet.PARITY_OFFSET + length)) {
+            return null;
+        }
+
+        packet.setChecksum();
+
+        return packet;
+    }
+
+    /**
+     * @param seq A sequence number
+     * @return Whether or not the data packet with the sequence number is kept
+     */
+    private boolean isReceived(int seq) {
+        return filled[seq & mask] && seqs[seq & mask] == seq;
+    }
+
+    /**
+     * Update the loss rate, every sequence number skipped by a new packet counts as lost
+     * @param seq The sequence number of a received packet
+     */
+    private void updateLossRate(int seq) {
+        int distance = seq - highest;
+
+        // Retransmissions and packets that were reordered are not new
+        if (started && distance <= 0) {
+            return;
+        }
+
+        // A jump outside of the window means the source started over
+        if (started && distance <= Protocol.WINDOW_SIZE) {
+            for (int n = 1; n < distance; n++) {
+                lossRate += (1 - lossRate) * LOSS_GAIN;
+            }
+
+            lossRate -= lossRate * LOSS_GAIN;
+        }
+
+        highest = seq;
+        started = true;
+    }
+
+    /**
+     * @return The estimated loss rate of the source, between 0 and 1
+     */
+    public synchronized double getLossRate() {
+        return lossRate;
+    }
+
+    /**
+     * Choose the group size the source should use for the current loss rate. <br>
+     * Groups are sized so about half a packet per group is lost, rounded down to a power of two so small changes in the loss rate don't cause a new request.
+     * @param enabled Whether or not forward error correction is enabled locally
+     * @return The new group size if it changed since the last call, 0 to disable, or -1 if it did not change
+     */
+    public synchronized int takeGroupSizeChange(boolean enabled) {
+        int groupSize = 0;
+
+        // Only stop once the loss rate dropped well below the threshold, so it doesn't switch on and off around it
+        double threshold = requestedGroupSize > 0 ? Protocol.FEC_MIN_LOSS / 2 : Protocol.FEC_MIN_LOSS;
+
+        if (enabled && lossRate >= threshold) {
+            int size = (int) Math.max(Protocol.FEC_MIN_GROUP, Math.min(0.5 / lossRate, Protocol.FEC_MAX_GROUP));
+            groupSize = Integer.highestOneBit(size);
+        }
+
+        if (groupSize == requestedGroupSize) {
+            return -1;
+        }
+
+        requestedGroupSize = groupSize;
+
+        return groupSize;
+    }
+}
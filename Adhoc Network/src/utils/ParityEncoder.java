@@ -0,0 +1,108 @@
+package utils;
+
+import dataobjects.Packet;
+
+import java.util.Arrays;
+
+/**
+ * XOR parity encoder for forward error correction. <br>
+ * After every group of data packets a parity packet is sent, the receiver can rebuild a single lost packet of the group from it without waiting for a retransmission.
+ *
+ * @author Frank
+ */
+public class ParityEncoder {
+    private byte[] parity;
+    private int length;
+
+    private int first;
+    private int count;
+    private int groupSize;
+
+    /**
+     * Constructor, the encoder starts disabled
+     */
+    public ParityEncoder() {
+        parity = new byte[Packet.MAX_PARITY_SIZE];
+        groupSize = 0;
+    }
+
+    /**
+     * Set the amount of data packets per parity packet, a change takes effect at the next group
+     * @param groupSize The group size, 0 disables forward error correction
+     */
+    public synchronized void setGroupSize(int groupSize) {
+        this.groupSize = groupSize == 0 ? 0 : Math.max(Protocol.FEC_MIN_GROUP, Math.min(groupSize, Protocol.FEC_MAX_GROUP));
+    }
+
+    /**
+     * @return The amount of data packets per parity packet, 0 if forward error correction is disabled
+     */
+    public synchronized int getGroupSize() {
+        return groupSize;
+    }
+
+    /**
+     * Add a sent data packet to the current group
+     * @param packet The packet, with its sequence number, acknowledgement and length set
+     * @return The parity packet to send if the group is complete, else null
+     */
+    public synchronized Packet addPacket(Packet packet) {
+        if (groupSize == 0 && count == 0) {
+            return null;
+        }
+
+        // Groups cover consecutive sequence numbers, start over if a packet was skipped
+        if (count > 0 && packet.getSeq() != first + count) {
+            reset();
+        }
+
+        if (count == 0) {
+            first = packet.getSeq();
+        }
+
+        packet.xorProtected(parity);
+        length = Math.max(length, packet.getLength() - Packet.PARITY_OFFSET);
+        count++;
+
+        return count >= Math.max(groupSize, 1) ? createParity(packet) : null;
+    }
+
+    /**
+     * Close the current group early, used when there is nothing more to send for now
+     * @param packet A packet of the group, for its addresses
+     * @return The parity packet to send if the group has more than one packet, else null
+     */
+    public synchronized Packet flush(Packet packet) {
+        return count > 1 ? createParity(packet) : null;
+    }
+
+    /**
+     * Create the parity packet for the current group and start a new group
+     * @param packet A packet of the group, for its addresses
+     * @return The parity packet
+     */
+    private Packet createParity(Packet packet) {
+        Packet parityPacket = new Packet(Packet.HEADER_SIZE + Packet.PARITY_HEADER_SIZE + length);
+        parityPacket.setSource(packet.getSource());
+        parityPacket.setDestination(packet.getDestination());
+        parityPacket.setSeq(first);
+        parityPacket.setHops(Protocol.MAXHOPS);
+        parityPacket.setFlag(Packet.PARITY, true);
+        parityPacket.setParity(count, parity, length);
+        parityPacket.setLength();
+        parityPacket.setChecksum();
+
+        reset();
+
+        return parityPacket;
+    }
+
+    /**
+     * Start a new group
+     */
+    private void reset() {
+        Arrays.fill(parity, 0, length, (byte) 0);
+        length = 0;
+        count = 0;
+    }
+}
@@ -0,0 +1,196 @@
+package utils;
+
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor with a thread of its own for every key, meant for virtual threads with a key per peer. <br>
+ * The thread of a key takes its tasks from a bounded queue with plain blocking code, so a slow task only holds up the tasks of its own key.
+ * A thread that has been idle for a while ends, it is started again by the next task of its key. Tasks that don't fit in the queue of their key are rejected. <br>
+ * The amount of threads is capped, as anyone can send packets from new sources. Once the cap is reached the tasks of new keys go to a fallback executor,
+ * until some threads ended. A key that moves between the two may have its tasks run out of order once.
+ *
+ * @author Frank
+ */
+public class PeerExecutor implements KeyedExecutor {
+    private static final ThreadFactory VIRTUAL_THREADS = getVirtualThreadFactory();
+
+    private String name;
+    private ThreadFactory threadFactory;
+    private int queueSize;
+    private long idleTimeout;
+    private int maxWorkers;
+    private KeyedExecutor fallback;
+
+    private Map<Integer, Worker> workers;
+    private volatile boolean shutdown;
+
+    /**
+     * Constructor
+     * @param name The name of the threads, followed by their key
+     * @param threadFactory The factory of the threads
+     * @param queueSize The maximum amount of tasks waiting per key
+     * @param idleTimeout The time in milliseconds after which a thread without tasks ends
+     * @param maxWorkers The maximum amount of threads
+     * @param fallback The executor of the tasks of new keys while there are maxWorkers threads
+     */
+    public PeerExecutor(String name, ThreadFactory threadFactory, int queueSize, long idleTimeout, int maxWorkers, KeyedExecutor fallback) {
+        this.name = name;
+        this.threadFactory = threadFactory;
+        this.queueSize = queueSize;
+        this.idleTimeout = idleTimeout;
+        this.maxWorkers = maxWorkers;
+        this.fallback = fallback;
+
+        workers = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return The factory of virtual threads, or null if the runtime has no virtual threads
+     */
+    public static ThreadFactory getVirtualThreads() {
+        return VIRTUAL_THREADS;
+    }
+
+    /**
+     * Run a task on the thread of its key, or on the fallback executor if there are too many threads. <br>
+     * The task is rejected if the queue of the key is full or the executor was shut down
+     * @param key The key of the task
+     * @param task The task to run
+     * @return true if the task will run, false if it was rejected
+     */
+    @Override
+    public boolean execute(int key, Runnable task) {
+        while (!shutdown) {
+            Worker worker = workers.computeIfAbsent(key, k -> workers.size() < maxWorkers ? new Worker(k) : null);
+
+            if (worker == null) {
+                return fallback.execute(key, task);
+            }
+
+            // A worker that ended in the meantime is replaced by a new one
+            Boolean added = worker.offer(task);
+
+            if (added != null) {
+                return added;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Stop the threads and the fallback executor, the tasks that are waiting are dropped
+     */
+    @Override
+    public void shutdown() {
+        shutdown = true;
+        fallback.shutdown();
+
+        for (Worker worker : workers.values()) {
+            worker.stop();
+        }
+    }
+
+    /**
+     * Look up the factory of virtual threads by reflection, so we still run on runtimes without them
+     */
+    private static ThreadFactory getVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Thread of one key with its queue of tasks
+     */
+    private class Worker implements Runnable {
+        private final int key;
+        private final BlockingQueue<Runnable> tasks;
+        private Thread thread;
+        private boolean ended;
+
+        private Worker(int key) {
+            this.key = key;
+            tasks = new ArrayBlockingQueue<>(queueSize);
+        }
+
+        /**
+         * Add a task, the thread is started by the first one
+         * @return true if the task was added, false if the queue is full, or null if the worker has ended
+         */
+        private synchronized Boolean offer(Runnable task) {
+            if (ended) {
+                return null;
+            }
+
+            if (thread == null) {
+                thread = threadFactory.newThread(this);
+                thread.setName(name + "-" + key);
+                thread.setDaemon(true);
+                thread.start();
+            }
+
+            return tasks.offer(task);
+        }
+
+        /**
+         * End the worker if no task came in while it was idle
+         * @return true if it ended
+         */
+        private synchronized boolean end() {
+            if (tasks.isEmpty() || shutdown) {
+                ended = true;
+                workers.remove(key, this);
+            }
+
+            return ended;
+        }
+
+        /**
+         * Stop the worker right away
+         */
+        private synchronized void stop() {
+            ended = true;
+            tasks.clear();
+
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Runnable task = tasks.poll(idleTimeout, TimeUnit.MILLISECONDS);
+
+                    if (task == null || shutdown) {
+                        if (end()) {
+                            return;
+                        }
+                    } else {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            // A failing task must not stop the tasks after it
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Stopped by a shutdown
+            }
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package utils;
+
+import dataobjects.User;
+import encryption.DiffieHelman;
+
+import java.security.PublicKey;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Everything we keep about one peer: the user, the key material, and the send and receive windows. <br>
+ * The fields are read without locking, so a packet only needs the one table lookup for its peer.
+ * Opening and closing the send or receive side locks the session itself, so only threads working on the same peer ever wait for each other.
+ *
+ * @author Frank
+ */
+public class PeerSession {
+    private final int address;
+
+    private volatile User user;
+    private volatile DiffieHelman keyPair;
+    private volatile String groupKey;
+    private volatile PublicKey signingKey;
+    private final AtomicBoolean groupKeySent;
+
+    private volatile SendBuffer sendBuffer;
+    private volatile ParityEncoder parityEncoder;
+
+    private volatile ReceiveBuffer receiveBuffer;
+    private volatile ReceiveBuffer groupReceiveBuffer;
+    private volatile NackReceiveBuffer nackReceiveBuffer;
+    private volatile ReassemblyBuffer reassemblyBuffer;
+    private volatile ParityDecoder parityDecoder;
+
+    /**
+     * Constructor
+     * @param address The address of the peer
+     */
+    public PeerSession(int address) {
+        this.address = address;
+        groupKeySent = new AtomicBoolean();
+    }
+
+    /**
+     * Open the send side of the session
+     * @param windowSize The maximum window size
+     * @return true if it was opened, false if it was open already
+     */
+    public synchronized boolean openSend(int windowSize) {
+        if (sendBuffer != null) {
+            return false;
+        }
+
+        // The send buffer goes last, a send side with a send buffer is complete
+        parityEncoder = new ParityEncoder();
+        sendBuffer = new SendBuffer(windowSize, Protocol.SEND_QUEUE_SIZE);
+
+        return true;
+    }
+
+    /**
+     * Close the send side of the session
+     * @return The send buffer, or null if the send side was not open
+     */
+    public synchronized SendBuffer closeSend() {
+        SendBuffer sendBuffer = this.sendBuffer;
+        this.sendBuffer = null;
+        parityEncoder = null;
+
+        return sendBuffer;
+    }
+
+    /**
+     * Open the receive side of the session
+     * @param windowSize The maximum window size
+     * @return true if it was opened, false if it was open already
+     */
+    public synchronized boolean openReceive(int windowSize) {
+        if (receiveBuffer != null) {
+            return false;
+        }
+
+        // The receive buffer goes last, a receive side with a receive buffer is complete
+        groupReceiveBuffer = new ReceiveBuffer(windowSize);
+        nackReceiveBuffer = new NackReceiveBuffer(Protocol.NACK_BUFFER_SIZE);
+        reassemblyBuffer = new ReassemblyBuffer(Protocol.MAX_REASSEMBLIES, Protocol.REASSEMBLY_TIMEOUT);
+        parityDecoder = new ParityDecoder();
+        receiveBuffer = new ReceiveBuffer(windowSize);
+
+        return true;
+    }
+
+    /**
+     * Close the receive side of the session
+     */
+    public synchronized void closeReceive() {
+        receiveBuffer = null;
+        groupReceiveBuffer = null;
+        nackReceiveBuffer = null;
+        reassemblyBuffer = null;
+        parityDecoder = null;
+    }
+
+    /**
+     * @return The address of the peer
+     */
+    public int getAddress() {
+        return address;
+    }
+
+    /**
+     * @return The user, or null if the peer did not join the chat yet
+     */
+    public User getUser() {
+        return user;
+    }
+
+    /**
+     * @param user The user
+     */
+    public void setUser(User user) {
+        this.user = user;
+    }
+
+    /**
+     * @return The key pair of the key exchange, or null if no exchange was started
+     */
+    public DiffieHelman getKeyPair() {
+        return keyPair;
+    }
+
+    /**
+     * @param keyPair The key pair of the key exchange
+     */
+    public void setKeyPair(DiffieHelman keyPair) {
+        this.keyPair = keyPair;
+    }
+
+    /**
+     * Set the key pair of a key exchange the peer started
+     * @param keyPair The key pair
+     * @return true if it was set, false if another key exchange is already in progress
+     */
+    public synchronized boolean setKeyPairIfAbsent(DiffieHelman keyPair) {
+        if (this.keyPair != null) {
+            return false;
+        }
+
+        this.keyPair = keyPair;
+
+        return true;
+    }
+
+    /**
+     * @return Whether or not the key exchange has finished
+     */
+    public boolean isExchanged() {
+        DiffieHelman keyPair = this.keyPair;
+
+        return keyPair != null && keyPair.isExchangeSuccesful();
+    }
+
+    /**
+     * @return The symmetric key of the key exchange, or null if it has not finished
+     */
+    public String getSymmetricKey() {
+        DiffieHelman keyPair = this.keyPair;
+
+        return keyPair != null && keyPair.isExchangeSuccesful() ? keyPair.getSymmetricKey() : null;
+    }
+
+    /**
+     * @return The key the group addressed messages of the peer are encrypted with, or null if the peer did not send it yet
+     */
+    public String getGroupKey() {
+        return groupKey;
+    }
+
+    /**
+     * @param groupKey The key the group addressed messages of the peer are encrypted with
+     */
+    public void setGroupKey(String groupKey) {
+        this.groupKey = groupKey;
+    }
+
+    /**
+     * @return The public key the leave message of the peer is verified with, or null if the peer did not send it yet
+     */
+    public PublicKey getSigningKey() {
+        return signingKey;
+    }
+
+    /**
+     * @param signingKey The public key the leave message of the peer is verified with
+     */
+    public void setSigningKey(PublicKey signingKey) {
+        this.signingKey = signingKey;
+    }
+
+    /**
+     * Mark our group key as sent to the peer
+     * @return true if it was not sent before, false if it was
+     */
+    public boolean markGroupKeySent() {
+        return groupKeySent.compareAndSet(false, true);
+    }
+
+    /**
+     * @return The send buffer, or null if the send side is not open
+     */
+    public SendBuffer getSendBuffer() {
+        return sendBuffer;
+    }
+
+    /**
+     * @return The parity encoder of the packets we send, or null if the send side is not open
+     */
+    public ParityEncoder getParityEncoder() {
+        return parityEncoder;
+    }
+
+    /**
+     * @return The receive buffer, or null if the receive side is not open
+     */
+    public ReceiveBuffer getReceiveBuffer() {
+        return receiveBuffer;
+    }
+
+    /**
+     * @return The receive buffer of the group addressed packets, or null if the receive side is not open
+     */
+    public ReceiveBuffer getGroupReceiveBuffer() {
+        return groupReceiveBuffer;
+    }
+
+    /**
+     * @return The receive buffer of the packets that are repaired on request, or null if the receive side is not open
+     */
+    public NackReceiveBuffer getNackReceiveBuffer() {
+        return nackReceiveBuffer;
+    }
+
+    /**
+     * @return The reassembly buffer of fragmented messages, or null if the receive side is not open
+     */
+    public ReassemblyBuffer getReassemblyBuffer() {
+        return reassemblyBuffer;
+    }
+
+    /**
+     * @return The parity decoder of the packets we receive, or null if the receive side is not open
+     */
+    public ParityDecoder getParityDecoder() {
+        return parityDecoder;
+    }
+}
@@ -0,0 +1,53 @@
+package utils;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Table of the sessions with our peers, keyed by address. <br>
+ * Lookups don't lock, and adding or removing a session only locks the part of the table the address falls in.
+ *
+ * @author Frank
+ */
+public class PeerTable {
+    private ConcurrentHashMap<Integer, PeerSession> sessions;
+
+    /**
+     * Constructor
+     */
+    public PeerTable() {
+        sessions = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @param address The address of a peer
+     * @return The session with the peer, or null if there is none
+     */
+    public PeerSession get(int address) {
+        return sessions.get(address);
+    }
+
+    /**
+     * @param address The address of a peer
+     * @return The session with the peer, a new one if there was none
+     */
+    public PeerSession getOrCreate(int address) {
+        return sessions.computeIfAbsent(address, PeerSession::new);
+    }
+
+    /**
+     * Remove the session with a peer
+     * @param address The address of the peer
+     * @return The removed session, or null if there was none
+     */
+    public PeerSession remove(int address) {
+        return sessions.remove(address);
+    }
+
+    /**
+     * @return The sessions, a live view that can be iterated while sessions are added and removed
+     */
+    public Collection<PeerSession> getSessions() {
+        return sessions.values();
+    }
+}
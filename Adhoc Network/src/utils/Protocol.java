@@ -1,5 +1,7 @@
 package utils;
 
+import dataobjects.Packet;
+
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 
@@ -46,15 +48,258 @@ public class Protocol {
 	public static final long INACTIVITY_LIMIT = 9000l;
 
 	/**
-	 * Timeout time for retransmissions in milliseconds
+	 * Initial timeout time for retransmissions in milliseconds, used until a round trip time has been measured
+	 */
+	public static final long TIMEOUT = 300l;
+
+	/**
+	 * Minimum timeout time for retransmissions in milliseconds
+	 */
+	public static final long MIN_TIMEOUT = 100l;
+
+	/**
+	 * Maximum timeout time for retransmissions in milliseconds, also the cap for the exponential backoff
+	 */
+	public static final long MAX_TIMEOUT = 4000l;
+
+	/**
+	 * Duration of a tick of the retransmission timers in milliseconds
+	 */
+	public static final long RETRANSMIT_TICK = 10l;
+
+	/**
+	 * Amount of buckets in the retransmission timer wheel, one rotation spans this many retransmit ticks
+	 */
+	public static final int TIMER_WHEEL_SIZE = 512;
+
+	/**
+	 * Max amount of retransmissions of a packet before its destination is marked as suspect
+	 */
+	public static final int MAX_RETRANSMISSIONS = 5;
+
+	/**
+	 * Time in milliseconds after which an incomplete fragmented message is discarded
+	 */
+	public static final long REASSEMBLY_TIMEOUT = 5000l;
+
+	/**
+	 * Max amount of incomplete fragmented messages kept per user
+	 */
+	public static final int MAX_REASSEMBLIES = 4;
+
+	/**
+	 * Maximum window size in packets, the congestion window never grows beyond it
+	 */
+	public static final int WINDOW_SIZE = 64;
+
+	/**
+	 * Initial congestion window in packets
+	 */
+	public static final int INITIAL_WINDOW = 4;
+
+	/**
+	 * Minimum congestion window in packets after a loss
+	 */
+	public static final int MIN_WINDOW = 2;
+
+	/**
+	 * Max amount of packets per user waiting for room in the congestion window
+	 */
+	public static final int SEND_QUEUE_SIZE = 256;
+
+	/**
+	 * Max time in milliseconds an acknowledgement is delayed to be combined with others, well below MIN_TIMEOUT
+	 */
+	public static final long ACK_DELAY = 20l;
+
+	/**
+	 * Amount of received packets after which an acknowledgement is sent without waiting for ACK_DELAY
+	 */
+	public static final int ACK_EVERY = 4;
+
+	/**
+	 * Whether or not forward error correction is requested from other users when packets get lost
+	 */
+	public static final boolean ERROR_CORRECTION = true;
+
+	/**
+	 * Loss rate from which forward error correction is requested
+	 */
+	public static final double FEC_MIN_LOSS = 0.02;
+
+	/**
+	 * Minimum amount of data packets per parity packet
+	 */
+	public static final int FEC_MIN_GROUP = 2;
+
+	/**
+	 * Maximum amount of data packets per parity packet
+	 */
+	public static final int FEC_MAX_GROUP = 16;
+
+	/**
+	 * Amount of members from which main chat messages are repaired on request (NACK) instead of acknowledged by every member
+	 */
+	public static final int NACK_MIN_MEMBERS = 8;
+
+	/**
+	 * Max amount of packets kept for repairs, also the max amount of packets a member can fall behind
+	 */
+	public static final int NACK_BUFFER_SIZE = 256;
+
+	/**
+	 * Time in milliseconds after which a packet is not repaired anymore
+	 */
+	public static final long NACK_RETENTION = 10000l;
+
+	/**
+	 * Minimum time in milliseconds between two repairs of the same packet
+	 */
+	public static final long NACK_REPAIR_INTERVAL = 100l;
+
+	/**
+	 * Minimum delay in milliseconds before requesting lost packets, so packets that come in out of order over a longer path are not requested
+	 */
+	public static final long NACK_DELAY = 80l;
+
+	/**
+	 * Max random delay in milliseconds added to NACK_DELAY, so the members don't all request the same packets at once
+	 */
+	public static final long NACK_JITTER = 100l;
+
+	/**
+	 * Time in milliseconds to wait for a repair before requesting lost packets again
+	 */
+	public static final long NACK_RETRY = 500l;
+
+	/**
+	 * Max amount of requests for a lost packet before it is given up on
+	 */
+	public static final int NACK_MAX_ATTEMPTS = 3;
+
+	/**
+	 * Amount of bits per generation of the duplicate filter for flooded packets, enough for a few thousand packets per period with few false positives
+	 */
+	public static final int FLOOD_FILTER_BITS = 65536;
+
+	/**
+	 * Time in milliseconds a flooded packet is remembered for at least, it is forgotten after twice this time. <br>
+	 * Retransmissions are told apart by their transmission count, so late copies over long paths can be remembered for seconds.
+	 */
+	public static final long FLOOD_PERIOD = 2000l;
+
+	/**
+	 * Amount of threads that decrypt and handle received packets, the event loop keeps a core of its own
+	 */
+	public static final int DECODE_WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+	/**
+	 * Max amount of received packets waiting per decode thread, packets that don't fit are dropped
+	 */
+	public static final int DECODE_QUEUE_SIZE = 1024;
+
+	/**
+	 * Whether or not every user gets a virtual thread of its own to decode and handle its received packets and to start its key exchange,
+	 * where the runtime has virtual threads. Sending and retransmissions stay on the event loop. <br>
+	 * Else the users share the DECODE_WORKERS decode threads.
+	 */
+	public static final boolean THREAD_PER_PEER = false;
+
+	/**
+	 * Max amount of per user threads, the packets of the other sources go to the DECODE_WORKERS decode threads
+	 */
+	public static final int MAX_PEER_THREADS = 256;
+
+	/**
+	 * Time in milliseconds after which the thread of a user without received packets ends, the next packet starts a new one
 	 */
-	public static final long TIMEOUT = 100l;
+	public static final long PEER_THREAD_IDLE = 30000l;
 
 	/**
-	 * Rate at which the 'alive' messages should be broadcasted
+	 * Time in milliseconds after which a route that was not confirmed by traffic expires
+	 */
+	public static final long ROUTE_TIMEOUT = 6000l;
+
+	/**
+	 * Maximum time in milliseconds to listen for copies of a broadcast before deciding whether to forward it, the actual time is random so neighbors don't all decide at once
+	 */
+	public static final long BROADCAST_DELAY = 20l;
+
+	/**
+	 * Amount of recent broadcasts the broadcast policy keeps track of, enough for the group addressed packets of all members within BROADCAST_DELAY
+	 */
+	public static final int MAX_TRACKED_BROADCASTS = 1024;
+
+	/**
+	 * Amount of copies of a broadcast after which forwarding it is pointless, for the counter based broadcast policy
+	 */
+	public static final int BROADCAST_COUNTER = 4;
+
+	/**
+	 * Probability of forwarding a broadcast, for the gossip broadcast policy
+	 */
+	public static final double GOSSIP_PROBABILITY = 0.65;
+
+	/**
+	 * Distance in hops from the source up to which the gossip broadcast policy always forwards, so a broadcast doesn't die out right away
+	 */
+	public static final int GOSSIP_HOPS = 1;
+
+	/**
+	 * Amount of recent 'alive' messages of a neighbor the delivery ratio of its link is measured over
+	 */
+	public static final int BEACON_WINDOW = 10;
+
+	/**
+	 * Max amount of neighbors an 'alive' message reports the delivery ratio of, so it stays a single packet
+	 */
+	public static final int MAX_REPORTED_NEIGHBORS = 32;
+
+	/**
+	 * Rate at which the 'alive' beacons are sent to our neighbors
 	 */
 	public static final long ALIVE_RATE = 3000l;
 
+	/**
+	 * Time in milliseconds between two membership probes, every period one member is probed
+	 */
+	public static final long PROBE_PERIOD = 1000l;
+
+	/**
+	 * Time in milliseconds a probed member gets to answer before it is probed through other members
+	 */
+	public static final long PROBE_TIMEOUT = 300l;
+
+	/**
+	 * Amount of members a member that doesn't answer is probed through
+	 */
+	public static final int INDIRECT_PROBES = 3;
+
+	/**
+	 * A suspected member gets this many times the log of the room size probe periods to refute the suspicion
+	 */
+	public static final int SUSPICION_MULTIPLIER = 3;
+
+	/**
+	 * A membership change is piggybacked this many times the log of the room size
+	 */
+	public static final int DISSEMINATION_MULTIPLIER = 3;
+
+	/**
+	 * Time in milliseconds dead members are remembered, so old news about them isn't taken for a join
+	 */
+	public static final long DEAD_RETENTION = 30000l;
+
+	/**
+	 * Max random delay in milliseconds before answering the join request of a neighbor, so the neighbors don't all answer at once
+	 */
+	public static final long JOIN_JITTER = 30l;
+
+	/**
+	 * Max length in bytes of a beacon or probe, so it stays a single packet after encryption
+	 */
+	public static final int MAX_MEMBERSHIP_MESSAGE = Packet.MAX_PAYLOAD_SIZE - 32;
+
 	/**
 	 * Broadcast address
 	 */
@@ -80,6 +325,41 @@ public class Protocol {
 	 */
 	public static final String ALIVE = "ALIVE";
 
+	/**
+	 * PING protocol message for probing a member
+	 */
+	public static final String PING = "PING";
+
+	/**
+	 * PING_REQ protocol message for asking a member to probe another member for us
+	 */
+	public static final String PING_REQ = "PINGREQ";
+
+	/**
+	 * PING_ACK protocol message for answering a probe
+	 */
+	public static final String PING_ACK = "PINGACK";
+
+	/**
+	 * JOIN protocol message for asking the neighbors for their membership list after connecting
+	 */
+	public static final String JOIN = "JOIN";
+
+	/**
+	 * ROSTER protocol message for sending our membership list to a neighbor that just connected
+	 */
+	public static final String ROSTER = "ROSTER";
+
+	/**
+	 * LEAVE protocol message for announcing we disconnect, signed with our private signing key
+	 */
+	public static final String LEAVE = "LEAVE";
+
+	/**
+	 * ENTER protocol message used to signal a user entering the chat
+	 */
+	public static final String ENTER = "ENTER";
+
 	/**
 	 * PART protocol message used to signal a user leaving the chat
 	 */
@@ -100,6 +380,16 @@ public class Protocol {
 	 */
 	public static final String SYM_KEY = "SYM";
 
+	/**
+	 * FEC protocol message for requesting a parity group size for forward error correction, 0 disables it
+	 */
+	public static final String FEC = "FEC";
+
+	/**
+	 * GROUP_KEY protocol message for sending the key of our group addressed messages to a member, along with the public key our leave message is verified with
+	 */
+	public static final String GROUP_KEY = "GRPKEY";
+
 	/**
 	 * KEY_RECEIVED protocol message for signalling a successful key exchange
 	 */
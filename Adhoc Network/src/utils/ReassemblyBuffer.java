@@ -0,0 +1,113 @@
+package utils;
+
+import dataobjects.Packet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reassembly buffer for putting fragmented payloads back together
+ *
+ * @author Frank
+ */
+public class ReassemblyBuffer {
+    private final int MAX_MESSAGES;
+    private final long TIMEOUT;
+
+    private Map<Short, Message> messages;
+
+    /**
+     * Constructor
+     * @param maxMessages The maximum amount of incomplete messages
+     * @param timeout The time in milliseconds after which an incomplete message is discarded
+     */
+    public ReassemblyBuffer(int maxMessages, long timeout) {
+        messages = new LinkedHashMap<>();
+        MAX_MESSAGES = maxMessages;
+        TIMEOUT = timeout;
+    }
+
+    /**
+     * Add a fragment to the buffer
+     * @param packet The fragment to add
+     * @return The complete payload if this was the last missing fragment, else null
+     */
+    public byte[] addFragment(Packet packet) {
+        long now = System.currentTimeMillis();
+        int index = packet.getFragmentIndex();
+        int count = packet.getFragmentCount();
+
+        // Discard fragments with an impossible header
+        if (index >= count) {
+            return null;
+        }
+
+        removeExpired(now);
+
+        Message message = messages.get(packet.getFragmentId());
+
+        // Start a new message if this is the first fragment we see of it
+        if (message == null || message.fragments.length != count) {
+            // Remove the oldest message if the buffer is full
+            if (messages.size() >= MAX_MESSAGES) {
+                messages.remove(messages.keySet().iterator().next());
+            }
+
+            message = new Message(count, now);
+            messages.put(packet.getFragmentId(), message);
+        }
+
+        // Store the fragment if we don't have it yet
+        if (message.fragments[index] == null) {
+            message.fragments[index] = packet.getFragmentPayload();
+            message.size += message.fragments[index].length;
+            message.received++;
+        }
+
+        // If all fragments have been received, put the payload back together
+        if (message.received == count) {
+            messages.remove(packet.getFragmentId());
+
+            byte[] payload = new byte[message.size];
+            int offset = 0;
+
+            for (byte[] fragment : message.fragments) {
+                System.arraycopy(fragment, 0, payload, offset, fragment.length);
+                offset += fragment.length;
+            }
+
+            return payload;
+        }
+
+        return null;
+    }
+
+    /**
+     * Remove the messages that have been incomplete for longer than the timeout
+     * @param now The current time in milliseconds
+     */
+    private void removeExpired(long now) {
+        Iterator<Message> iterator = messages.values().iterator();
+
+        // Messages are kept in order of arrival, so we can stop at the first one that has not expired
+        while (iterator.hasNext() && now - iterator.next().created > TIMEOUT) {
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Incomplete fragmented message
+     */
+    private static class Message {
+        private byte[][] fragments;
+        private int received;
+        private int size;
+        private long created;
+
+        private Message(int count, long created) {
+            this.fragments = new byte[count][];
+            this.created = created;
+        }
+    }
+}
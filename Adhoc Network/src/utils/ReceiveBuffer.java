@@ -2,48 +2,162 @@ package utils;
 
 import dataobjects.Packet;
 
-import java.util.LinkedHashSet;
-import java.util.Set;
+import java.util.Arrays;
 
 /**
- * Receive buffer for ensuring reliable data transmissions
+ * Receive buffer for ensuring reliable data transmissions. <br>
+ * Packets received out of order are marked in a circular array indexed by sequence number. <br>
+ * Also keeps track of the received packets that have not been acknowledged yet, so acknowledgements can be delayed and combined.
  *
  * @author Frank
  */
 public class ReceiveBuffer {
     private final int WINDOW_SIZE;
 
-    private Set<Integer> buffer;
+    /* Out of order packets, slot seq & mask */
+    private final int mask;
+    private boolean[] received;
+    private int outOfOrder;
+    private int highest;
+
+    private int expected;
+
+    private int unacked;
+    private boolean ackScheduled;
 
     /**
      * Constructor
      * @param windowSize The maximum window size
      */
     public ReceiveBuffer(int windowSize) {
-        buffer = new LinkedHashSet<>();
         WINDOW_SIZE = windowSize;
+
+        // Round the window up to a power of two, so a sequence number maps to its slot with a mask
+        int capacity = Integer.highestOneBit(Math.max(windowSize - 1, 1)) << 1;
+        mask = capacity - 1;
+        received = new boolean[capacity];
+        outOfOrder = 0;
+        expected = 0;
     }
 
     /**
      * Add a packet to the receive buffer
      * @param packet The packet to add
-     * @return True if the packet is expected, false if it was duplicate or out of order
+     * @return True if the packet is expected, false if it was duplicate
      */
-    public boolean addPacket(Packet packet) {
-        if (!buffer.contains(packet.getSeq())) {
-            // Remove the first entry if the buffer is full
-            if (buffer.size() >= WINDOW_SIZE) {
-                buffer.remove(buffer.iterator().next());
-            }
+    public synchronized boolean addPacket(Packet packet) {
+        int seq = packet.getSeq();
+        int distance = seq - expected;
+
+        // Packets in the window behind the expected sequence number have already been received
+        if (distance < 0 && distance >= -WINDOW_SIZE) {
+            return false;
+        }
 
-            // Add the packet to the buffer
-            buffer.add(packet.getSeq());
+        // A sequence number outside of the window means the sender started over
+        if (distance < 0 || distance >= WINDOW_SIZE) {
+            Arrays.fill(received, false);
+            outOfOrder = 0;
+            expected = seq;
+            distance = 0;
+        }
+
+        if (distance == 0) {
+            // Move past the packets that were received out of order
+            do {
+                expected++;
+            } while (outOfOrder > 0 && take(expected));
 
-            // Return true to signal acceptance of the packet
             return true;
         }
 
-        // Return false to signal rejection of the packet
-        return false;
+        // Return whether or not the out of order packet is new
+        if (received[seq & mask]) {
+            return false;
+        }
+
+        received[seq & mask] = true;
+        highest = outOfOrder++ == 0 ? seq : (seq - highest > 0 ? seq : highest);
+
+        return true;
+    }
+
+    /**
+     * Remove a packet that was received out of order
+     * @param seq The sequence number of the packet
+     * @return true if the packet had been received, else false
+     */
+    private boolean take(int seq) {
+        if (!received[seq & mask]) {
+            return false;
+        }
+
+        received[seq & mask] = false;
+        outOfOrder--;
+
+        return true;
+    }
+
+    /**
+     * @return The acknowledgement number, the sequence number of the first missing packet
+     */
+    public synchronized int getAck() {
+        return expected;
+    }
+
+    /**
+     * Get the selective acknowledgement bitmap
+     * @return A bitmap where bit n is set if packet getAck() + 1 + n has been received
+     */
+    public synchronized byte[] getSack() {
+        // Only the packets up to the highest one received out of order need a bit
+        int bits = outOfOrder > 0 ? highest - expected : 0;
+        byte[] sack = new byte[(bits + Byte.SIZE - 1) / Byte.SIZE];
+
+        for (int n = 0; n < bits; n++) {
+            if (received[(expected + 1 + n) & mask]) {
+                sack[n / Byte.SIZE] |= 1 << (n % Byte.SIZE);
+            }
+        }
+
+        return sack;
+    }
+
+    /**
+     * Count a received packet that should be acknowledged
+     * @return true if enough packets are waiting for an acknowledgement to send one right away
+     */
+    public synchronized boolean addUnacked() {
+        return ++unacked >= Protocol.ACK_EVERY;
+    }
+
+    /**
+     * Claim the delayed acknowledgement timer
+     * @return true if no delayed acknowledgement was scheduled yet and the caller should schedule one
+     */
+    public synchronized boolean scheduleAck() {
+        if (ackScheduled) {
+            return false;
+        }
+
+        ackScheduled = true;
+
+        return true;
+    }
+
+    /**
+     * Take the pending acknowledgement, the caller should send or piggyback it
+     * @param cumulativeOnly Only take the acknowledgement if it does not need a selective acknowledgement bitmap
+     * @return true if there were unacknowledged packets, else false
+     */
+    public synchronized boolean takeUnacked(boolean cumulativeOnly) {
+        if (unacked == 0 || (cumulativeOnly && outOfOrder > 0)) {
+            return false;
+        }
+
+        unacked = 0;
+        ackScheduled = false;
+
+        return true;
     }
 }
@@ -0,0 +1,115 @@
+package utils;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Routing table for unicast packets. <br>
+ * Routes are learned on demand from the traffic we overhear: a packet of a source that reached us through a neighbor means the neighbor is a next hop towards that source,
+ * and the hop count tells how far away it is. The membership probes every member sends keep the routes fresh. <br>
+ * A route is only replaced by a shorter one, or once it expired, so the table settles on the shortest path.
+ *
+ * @author Frank
+ */
+public class RoutingTable {
+    private final long TIMEOUT;
+
+    private Map<Integer, Route> routes;
+
+    /**
+     * Constructor
+     * @param timeout The time in milliseconds after which a route that was not confirmed expires
+     */
+    public RoutingTable(long timeout) {
+        TIMEOUT = timeout;
+        routes = new HashMap<>();
+    }
+
+    /**
+     * Learn a route from a received packet
+     * @param destination The source of the packet, the destination of the route
+     * @param nextHop The neighbor that sent us the packet
+     * @param distance The amount of hops the packet travelled
+     */
+    public synchronized void addRoute(int destination, int nextHop, int distance) {
+        long now = System.currentTimeMillis();
+        Route route = routes.get(destination);
+
+        if (route == null || now - route.updated > TIMEOUT || route.nextHop == nextHop || distance < route.distance) {
+            routes.put(destination, new Route(nextHop, distance, now));
+        } else if (distance == route.distance) {
+            // Another path of the same length, the route is still valid
+            route.updated = now;
+        }
+    }
+
+    /**
+     * Get the neighbor to send a packet for a destination to
+     * @param destination The destination address
+     * @return The address of the next hop, or Protocol.BROADCAST if there is no route and the packet should be flooded
+     */
+    public synchronized int getNextHop(int destination) {
+        Route route = routes.get(destination);
+
+        if (destination == Protocol.BROADCAST || route == null || System.currentTimeMillis() - route.updated > TIMEOUT) {
+            return Protocol.BROADCAST;
+        }
+
+        return route.nextHop;
+    }
+
+    /**
+     * Get the distance to a destination
+     * @param destination The destination address
+     * @return The amount of hops to the destination, or -1 if there is no route
+     */
+    public synchronized int getDistance(int destination) {
+        Route route = routes.get(destination);
+
+        if (route == null || System.currentTimeMillis() - route.updated > TIMEOUT) {
+            return -1;
+        }
+
+        return route.distance;
+    }
+
+    /**
+     * Forget the route to a destination, used when packets sent over it are lost so the next ones are flooded until a new route is learned
+     * @param destination The destination address
+     */
+    public synchronized void removeRoute(int destination) {
+        routes.remove(destination);
+    }
+
+    /**
+     * Forget a node, both the route to it and the routes through it. Used when a user leaves.
+     * @param address The address of the node
+     */
+    public synchronized void removeNode(int address) {
+        routes.remove(address);
+
+        Iterator<Route> iterator = routes.values().iterator();
+
+        while (iterator.hasNext()) {
+            if (iterator.next().nextHop == address) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Route to a destination
+     */
+    private static class Route {
+        private final int nextHop;
+        private final int distance;
+        private long updated;
+
+        private Route(int nextHop, int distance, long updated) {
+            this.nextHop = nextHop;
+            this.distance = distance;
+            this.updated = updated;
+        }
+    }
+}
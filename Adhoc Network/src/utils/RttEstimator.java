@@ -0,0 +1,74 @@
+package utils;
+
+/**
+ * Round trip time estimator for calculating the retransmission timeout (Jacobson/Karels)
+ *
+ * @author Frank
+ */
+public class RttEstimator {
+    private long srtt;
+    private long rttvar;
+    private long rto;
+
+    private boolean measured;
+
+    /**
+     * Constructor
+     */
+    public RttEstimator() {
+        rto = Protocol.TIMEOUT;
+        measured = false;
+    }
+
+    /**
+     * Add a round trip time sample, only samples of packets that were not retransmitted should be added (Karn)
+     * @param rtt The measured round trip time in milliseconds
+     */
+    public void addSample(long rtt) {
+        if (!measured) {
+            // The first sample sets the smoothed round trip time directly
+            srtt = rtt;
+            rttvar = rtt / 2;
+            measured = true;
+        } else {
+            // rttvar = 3/4 * rttvar + 1/4 * |srtt - rtt| and srtt = 7/8 * srtt + 1/8 * rtt
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+
+        // A new sample also ends any backoff
+        resetBackoff();
+    }
+
+    /**
+     * Recalculate the retransmission timeout from the measured round trip time, undoing any backoff
+     */
+    public void resetBackoff() {
+        if (measured) {
+            rto = Math.min(Math.max(srtt + Math.max(Protocol.RETRANSMIT_TICK, 4 * rttvar), Protocol.MIN_TIMEOUT), Protocol.MAX_TIMEOUT);
+        } else {
+            rto = Protocol.TIMEOUT;
+        }
+    }
+
+    /**
+     * Double the retransmission timeout after a timeout
+     */
+    public void backoff() {
+        rto = Math.min(rto * 2, Protocol.MAX_TIMEOUT);
+    }
+
+    /**
+     * @return The retransmission timeout in milliseconds
+     */
+    public long getRto() {
+        return rto;
+    }
+
+    /**
+     * @return The smoothed round trip time in milliseconds, or -1 if nothing has been measured yet
+     */
+    public long getSrtt() {
+        return measured ? srtt : -1;
+    }
+}
@@ -2,85 +2,381 @@ package utils;
 
 import dataobjects.Packet;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
- * Send buffer for ensuring reliable data delivery
+ * Send buffer for ensuring reliable data delivery. <br>
+ * Packets wait in a bounded queue until the congestion window (AIMD) has room for them. <br>
+ * Both the queue and the window are circular arrays, the window is indexed by sequence number so packets are stored, found and acknowledged without boxing or map lookups.
  *
  * @author Frank
  */
 public class SendBuffer {
     private final int WINDOW_SIZE;
+    private final int QUEUE_SIZE;
 
-    private Map<Integer, Packet> buffer;
+    /* Window of sent packets that have not been acknowledged, slot seq & mask */
+    private final int mask;
+    private Packet[] packets;
+    private Delivery[] deliveries;
+    private long[] sent;
+    private int[] transmissions;
+    private int inFlight;
 
+    /* Queue of packets waiting for room in the window */
+    private Packet[] queuedPackets;
+    private Delivery[] queuedDeliveries;
+    private int head;
+    private int queued;
+
+    private RttEstimator rttEstimator;
+
+    private double congestionWindow;
+    private double slowStartThreshold;
+
+    private int base;
     private int seq;
 
+    private boolean suspect;
+    private long lastBackoff;
+
     /**
      * Constructor
      * @param windowSize The maximum window size
+     * @param queueSize The maximum amount of packets waiting to be sent
      */
-    public SendBuffer(int windowSize) {
+    public SendBuffer(int windowSize, int queueSize) {
         WINDOW_SIZE = windowSize;
-        buffer = new ConcurrentHashMap<>();
+        QUEUE_SIZE = queueSize;
+
+        // Round the window up to a power of two, so a sequence number maps to its slot with a mask
+        int capacity = Integer.highestOneBit(Math.max(windowSize - 1, 1)) << 1;
+        mask = capacity - 1;
+        packets = new Packet[capacity];
+        deliveries = new Delivery[capacity];
+        sent = new long[capacity];
+        transmissions = new int[capacity];
+        inFlight = 0;
+
+        queuedPackets = new Packet[queueSize];
+        queuedDeliveries = new Delivery[queueSize];
+        head = 0;
+        queued = 0;
+
+        rttEstimator = new RttEstimator();
+        congestionWindow = Math.min(Protocol.INITIAL_WINDOW, windowSize);
+        slowStartThreshold = windowSize;
+        base = 0;
         seq = 0;
+        suspect = false;
     }
 
     /**
-     * Add the given packet to the buffer
-     * @param packet The packet to add
+     * Queue packets to be sent, either all of them are queued or none
+     * @param delivery Future that is completed once all packets have been acknowledged, may be null
+     * @param packets The packets to queue, their sequence numbers are set once they leave the queue
+     * @return true if the packets were queued, false if the queue does not have room for all of them
      */
-    public void addPacket(Packet packet) {
-        // If the buffer still has space
-        if (buffer.size() < WINDOW_SIZE) {
-            // Add the packet to the buffer
-            buffer.put(seq, packet);
+    public synchronized boolean offer(CompletableFuture<Void> delivery, Packet... packets) {
+        if (queued + packets.length > QUEUE_SIZE) {
+            return false;
+        }
 
-            // Increment the sequence number
-            seq += packet.getLength();
+        Delivery shared = delivery != null ? new Delivery(delivery, packets.length) : null;
 
-            // Make sure seq does not become negative
-            if (seq < 0) {
-                seq = 0;
-            }
-        } else {
-            System.err.println("Send window exceeded.");
+        for (Packet packet : packets) {
+            int index = (head + queued++) % QUEUE_SIZE;
+            queuedPackets[index] = packet;
+            queuedDeliveries[index] = shared;
         }
+
+        return true;
     }
 
     /**
-     * Get the unacked packets
-     * @return A map containing the unacked packets
+     * Take the next queued packet if the window has room for it and add it to the buffer. <br>
+     * The packet gets its sequence number and should get its checksum and be sent right away.
+     * @return The packet to send, or null if the queue is empty or the window is full
      */
-    public Map<Integer, Packet> getUnackedPackets() {
-        return buffer;
+    public synchronized Packet poll() {
+        if (queued == 0 || !canSend()) {
+            return null;
+        }
+
+        // Take the packet from the head of the queue
+        Packet packet = queuedPackets[head];
+        Delivery delivery = queuedDeliveries[head];
+        queuedPackets[head] = null;
+        queuedDeliveries[head] = null;
+        head = (head + 1) % QUEUE_SIZE;
+        queued--;
+
+        packet.setSeq(seq);
+
+        // Add the packet to the window
+        int index = seq & mask;
+        packets[index] = packet;
+        deliveries[index] = delivery;
+        sent[index] = System.currentTimeMillis();
+        transmissions[index] = 1;
+        inFlight++;
+
+        // Increment the sequence number, sequence numbers count packets so acknowledgements can refer to them with a bitmap
+        seq++;
+
+        return packet;
+    }
+
+    /**
+     * Mark a packet as retransmitted if its retransmission timeout has expired. <br>
+     * If the packet has been retransmitted too often the destination is marked as suspect instead. The pending deliveries stay pending:
+     * the packets are resent once the destination is resumed, and the deliveries only fail if the connection is closed.
+     * @param seq The sequence number of the packet
+     * @param now The current time in milliseconds
+     * @return The packet to retransmit, or null if it was acknowledged, has not expired or the destination is suspect
+     */
+    public synchronized Packet retransmit(int seq, long now) {
+        int index = seq & mask;
+
+        // Don't keep sending to a destination that doesn't answer
+        if (!isInFlight(seq) || suspect || now - sent[index] < rttEstimator.getRto()) {
+            return null;
+        }
+
+        if (transmissions[index] > Protocol.MAX_RETRANSMISSIONS) {
+            suspect = true;
+
+            return null;
+        }
+
+        // Back off once per timeout period, packets that time out again will wait twice as long
+        if (now - lastBackoff >= rttEstimator.getRto()) {
+            rttEstimator.backoff();
+            lastBackoff = now;
+
+            // Multiplicative decrease, a timeout means the path is congested or lossy
+            slowStartThreshold = Math.max(congestionWindow / 2, Protocol.MIN_WINDOW);
+            congestionWindow = slowStartThreshold;
+        }
+
+        sent[index] = now;
+        transmissions[index]++;
+
+        return packets[index];
+    }
+
+    /**
+     * Get the time at which a packet should be checked for retransmission again
+     * @param seq The sequence number of the packet
+     * @param now The current time in milliseconds
+     * @return The deadline in milliseconds, or -1 if the packet has been acknowledged
+     */
+    public synchronized long getDeadline(int seq, long now) {
+        if (!isInFlight(seq)) {
+            return -1;
+        }
+
+        // Suspect destinations are only checked occasionally, until they are resumed
+        return suspect ? now + Protocol.MAX_TIMEOUT : sent[seq & mask] + rttEstimator.getRto();
     }
 
     /**
      * @return The current sequence number
      */
-    public int getSeq() {
+    public synchronized int getSeq() {
         return seq;
     }
 
     /**
-     * Acknowledge a packet
-     * @param ack The acknowledgement number
+     * Acknowledge packets
+     * @param ack The acknowledgement number, all packets with a lower sequence number have been received
+     * @param sack Selective acknowledgement bitmap, bit n is set if packet ack + 1 + n has been received
+     */
+    public void ackPacket(int ack, ByteBuffer sack) {
+        List<CompletableFuture<Void>> delivered = new ArrayList<>();
+
+        synchronized (this) {
+            // Ignore acknowledgements for packets we have not sent
+            if (ack - base < 0 || ack - base > seq - base) {
+                return;
+            }
+
+            // The destination answered, so it is not suspect anymore
+            suspect = false;
+
+            long now = System.currentTimeMillis();
+            long rtt = -1;
+
+            // An acknowledgement also acknowledges all data with a lower sequence number than the acknowledgement number
+            for (; base != ack; base++) {
+                rtt = acknowledge(base, now, rtt, delivered);
+            }
+
+            // Remove the packets that were received out of order, only the holes are left to be retransmitted
+            int bits = Math.min(sack.remaining() * Byte.SIZE, seq - ack - 1);
+
+            for (int n = 0; n < bits; n++) {
+                if ((sack.get(sack.position() + n / Byte.SIZE) & (1 << (n % Byte.SIZE))) != 0) {
+                    rtt = acknowledge(ack + 1 + n, now, rtt, delivered);
+                }
+            }
+
+            if (rtt >= 0) {
+                rttEstimator.addSample(rtt);
+            }
+        }
+
+        // Complete the futures outside of the lock, their callbacks run on this thread
+        for (CompletableFuture<Void> delivery : delivered) {
+            delivery.complete(null);
+        }
+    }
+
+    /**
+     * Remove an acknowledged packet from the window, grow the congestion window and measure the round trip time. <br>
+     * Retransmitted packets are ambiguous and not measured (Karn).
+     * @param seq The sequence number of the packet, nothing happens if it was acknowledged before
+     * @param now The current time in milliseconds
+     * @param rtt The round trip time measured so far, or -1
+     * @param delivered List to add the future to if this was the last unacknowledged packet of its delivery
+     * @return The lowest round trip time of the packet and the given time
+     */
+    private long acknowledge(int seq, long now, long rtt, List<CompletableFuture<Void>> delivered) {
+        int index = seq & mask;
+
+        if (packets[index] == null) {
+            return rtt;
+        }
+
+        Delivery delivery = deliveries[index];
+        packets[index] = null;
+        deliveries[index] = null;
+        inFlight--;
+
+        // Additive increase, grow by a packet per acknowledgement during slow start and by a packet per window after
+        congestionWindow = Math.min(congestionWindow + (congestionWindow < slowStartThreshold ? 1 : 1 / congestionWindow), WINDOW_SIZE);
+
+        if (delivery != null && --delivery.remaining == 0 && !delivery.future.isDone()) {
+            delivered.add(delivery.future);
+        }
+
+        if (transmissions[index] == 1) {
+            long sample = now - sent[index];
+
+            return rtt < 0 ? sample : Math.min(rtt, sample);
+        }
+
+        return rtt;
+    }
+
+    /**
+     * @param seq The sequence number of a packet
+     * @return Whether or not the packet has been sent and not acknowledged yet
+     */
+    private boolean isInFlight(int seq) {
+        return seq - base >= 0 && seq - this.seq < 0 && packets[seq & mask] != null;
+    }
+
+    /**
+     * Close the buffer, all pending deliveries fail
+     */
+    public void close() {
+        List<CompletableFuture<Void>> failed;
+
+        synchronized (this) {
+            failed = removeDeliveries();
+            Arrays.fill(queuedPackets, null);
+            head = 0;
+            queued = 0;
+        }
+
+        for (CompletableFuture<Void> delivery : failed) {
+            delivery.completeExceptionally(new IOException("Connection closed."));
+        }
+    }
+
+    /**
+     * Detach the futures of all pending deliveries, the packets themselves stay in the buffer
+     * @return The futures that have not been completed yet
      */
-    public void ackPacket(int ack) {
-        // An acknowledgement also acknowledges all data with a lower sequence number than the acknowledgement number
-        for (int seq : buffer.keySet()) {
-            if (seq <= ack) {
-                buffer.remove(seq);
+    private List<CompletableFuture<Void>> removeDeliveries() {
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+
+        for (Delivery[] slots : Arrays.asList(deliveries, queuedDeliveries)) {
+            for (int index = 0; index < slots.length; index++) {
+                Delivery delivery = slots[index];
+
+                if (delivery != null && !delivery.future.isDone() && !pending.contains(delivery.future)) {
+                    pending.add(delivery.future);
+                }
+
+                slots[index] = null;
+            }
+        }
+
+        return pending;
+    }
+
+    /**
+     * Resume retransmissions with a fresh timeout, used when the destination shows signs of life
+     */
+    public synchronized void resume() {
+        if (suspect) {
+            suspect = false;
+            rttEstimator.resetBackoff();
+
+            long now = System.currentTimeMillis();
+
+            for (int seq = base; seq != this.seq; seq++) {
+                sent[seq & mask] = now - rttEstimator.getRto();
+                transmissions[seq & mask] = 1;
             }
         }
     }
 
     /**
-     * @return Whether or not we can send a packet
+     * @return The round trip time estimator of this connection
      */
-    public boolean canSend() {
-        return buffer.size() < WINDOW_SIZE;
+    public RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
+    /**
+     * @return The congestion window in packets
+     */
+    public synchronized double getCongestionWindow() {
+        return congestionWindow;
+    }
+
+    /**
+     * @return The amount of packets waiting to be sent
+     */
+    public synchronized int getQueueSize() {
+        return queued;
+    }
+
+    /**
+     * @return Whether or not the window has room for another packet
+     */
+    public synchronized boolean canSend() {
+        return seq - base < WINDOW_SIZE && inFlight < (int) congestionWindow;
+    }
+
+    /**
+     * Future shared by the packets of a single message, with the amount of packets left to be acknowledged
+     */
+    private static class Delivery {
+        private CompletableFuture<Void> future;
+        private int remaining;
+
+        private Delivery(CompletableFuture<Void> future, int remaining) {
+            this.future = future;
+            this.remaining = remaining;
+        }
     }
 }
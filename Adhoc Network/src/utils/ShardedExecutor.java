@@ -0,0 +1,80 @@
+package utils;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of worker threads where every task has a key, tasks with the same key always run on the same worker in the order they were added. <br>
+ * Tasks with different keys run in parallel. Every worker has a bounded queue, tasks that don't fit are rejected.
+ *
+ * @author Frank
+ */
+public class ShardedExecutor implements KeyedExecutor {
+    private ThreadPoolExecutor[] workers;
+
+    /**
+     * Constructor
+     * @param name The name of the worker threads
+     * @param workers The amount of worker threads
+     * @param queueSize The maximum amount of tasks waiting per worker
+     */
+    public ShardedExecutor(String name, int workers, int queueSize) {
+        this.workers = new ThreadPoolExecutor[Math.max(1, workers)];
+
+        for (int n = 0; n < this.workers.length; n++) {
+            String threadName = name + "-" + n;
+
+            this.workers[n] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), task -> {
+                Thread thread = new Thread(task, threadName);
+                thread.setDaemon(true);
+
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Run a task on the worker of its key, the task is rejected if the queue of the worker is full or the executor was shut down
+     * @param key The key of the task
+     * @param task The task to run
+     * @return true if the task will run, false if it was rejected
+     */
+    @Override
+    public boolean execute(int key, Runnable task) {
+        try {
+            workers[Math.floorMod(mix(key), workers.length)].execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // A failing task must not stop the worker
+                    e.printStackTrace();
+                }
+            });
+
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stop the workers, the tasks that are waiting are dropped
+     */
+    @Override
+    public void shutdown() {
+        for (ThreadPoolExecutor worker : workers) {
+            worker.shutdownNow();
+        }
+    }
+
+    /**
+     * Spread keys that differ in few bits, like the addresses of a subnet, over the workers
+     */
+    private static int mix(int key) {
+        key *= 0x9E3779B9;
+
+        return key ^ key >>> 16;
+    }
+}
@@ -0,0 +1,110 @@
+package utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Hashed timer wheel, timers are put in the bucket of the tick they expire in so advancing only touches that bucket
+ *
+ * @author Frank
+ */
+public class TimerWheel {
+    private final long TICK_DURATION;
+    private final int MASK;
+
+    private Bucket[] buckets;
+
+    private long start;
+    private long tick;
+
+    /**
+     * Constructor
+     * @param tickDuration The duration of a tick in milliseconds
+     * @param size The amount of buckets, rounded up to a power of two
+     */
+    public TimerWheel(long tickDuration, int size) {
+        int buckets = Integer.highestOneBit(Math.max(size - 1, 1)) << 1;
+
+        TICK_DURATION = tickDuration;
+        MASK = buckets - 1;
+        this.buckets = new Bucket[buckets];
+
+        for (int n = 0; n < buckets; n++) {
+            this.buckets[n] = new Bucket();
+        }
+
+        start = System.currentTimeMillis();
+        tick = 0;
+    }
+
+    /**
+     * Schedule a task
+     * @param task The task to run
+     * @param deadline The time in milliseconds at which the task should run
+     */
+    public synchronized void schedule(Runnable task, long deadline) {
+        // Round up to the tick the deadline falls in, tasks that are already due run on the next tick
+        long target = Math.max((deadline - start + TICK_DURATION - 1) / TICK_DURATION, tick);
+
+        buckets[(int) (target & MASK)].timeouts.add(new Timeout(task, (target - tick) / buckets.length));
+    }
+
+    /**
+     * Advance the wheel to the given time and run the tasks that expired
+     * @param now The current time in milliseconds
+     */
+    public void advance(long now) {
+        List<Runnable> expired = new ArrayList<>();
+
+        synchronized (this) {
+            long current = (now - start) / TICK_DURATION;
+
+            for (; tick <= current; tick++) {
+                List<Timeout> bucket = buckets[(int) (tick & MASK)].timeouts;
+
+                // Go through the bucket backwards so expired timeouts can be swapped with the last one and removed
+                for (int n = bucket.size() - 1; n >= 0; n--) {
+                    Timeout timeout = bucket.get(n);
+
+                    if (timeout.rounds == 0) {
+                        expired.add(timeout.task);
+                        bucket.set(n, bucket.get(bucket.size() - 1));
+                        bucket.remove(bucket.size() - 1);
+                    } else {
+                        timeout.rounds--;
+                    }
+                }
+            }
+        }
+
+        // Run the tasks outside of the lock so they can schedule new timeouts
+        for (Runnable task : expired) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // A failing task must not keep the others from running
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Bucket of the timeouts that expire in the same tick of a rotation
+     */
+    private static class Bucket {
+        private final List<Timeout> timeouts = new ArrayList<>();
+    }
+
+    /**
+     * Scheduled task with the amount of wheel rotations left before it expires
+     */
+    private static class Timeout {
+        private Runnable task;
+        private long rounds;
+
+        private Timeout(Runnable task, long rounds) {
+            this.task = task;
+            this.rounds = rounds;
+        }
+    }
+}